@@ -0,0 +1,61 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.benchmark;
+
+/**
+ * Stands in for the InputConnection ScanCommitter commits to, with the
+ * same calls, so the benchmarks run on a desktop JVM.
+ *
+ * The committed text is copied into an editor buffer like the target
+ * field would, and the buffer is emptied now and then so it stays the
+ * size of a real field.
+ */
+public final class CommitSink {
+
+	private static final int FIELD_SIZE = 16 * 1024;
+
+	private final StringBuilder editor = new StringBuilder(FIELD_SIZE * 2);
+	private int batchDepth = 0;
+	private long commits = 0;
+	private long chars = 0;
+
+	public boolean beginBatchEdit() {
+		batchDepth++;
+		return true;
+	}
+
+	public boolean commitText(CharSequence text, int newCursorPosition) {
+		if (editor.length() > FIELD_SIZE)
+			editor.setLength(0);
+		editor.append(text);
+		commits++;
+		chars += text.length();
+		return true;
+	}
+
+	public boolean endBatchEdit() {
+		if (batchDepth == 0)
+			throw new IllegalStateException("endBatchEdit without beginBatchEdit");
+		return --batchDepth > 0;
+	}
+
+	public long commits() {
+		return commits;
+	}
+
+	public long chars() {
+		return chars;
+	}
+}
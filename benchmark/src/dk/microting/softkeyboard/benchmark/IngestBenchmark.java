@@ -0,0 +1,215 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.benchmark;
+
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.microting.softkeyboard.scanner.BarcodeFramer;
+import dk.microting.softkeyboard.scanner.BarcodeValidator;
+import dk.microting.softkeyboard.scanner.DuplicateFilter;
+import dk.microting.softkeyboard.scanner.FrameDecoder;
+import dk.microting.softkeyboard.scanner.FrameQueue;
+import dk.microting.softkeyboard.scanner.FrameReader;
+import dk.microting.softkeyboard.scanner.FrameSink;
+import dk.microting.softkeyboard.scanner.PipedTransport;
+import dk.microting.softkeyboard.scanner.ScanFrame;
+import dk.microting.softkeyboard.scanner.TimerWheel;
+import dk.microting.softkeyboard.scanner.TransformPipeline;
+
+/**
+ * One operation is one scan going through the ingest path, so the
+ * average time is ns per scan, the throughput is scans per second and
+ * with {@code -prof gc} gc.alloc.rate.norm is bytes allocated per scan.
+ *
+ * The scan's bytes are fed in reads of {@code readSize}, the way the
+ * reader thread gets them from the socket.
+ * <ul>
+ * <li>frame: cutting the stream into frames</li>
+ * <li>decode: framing and decoding to characters</li>
+ * <li>pipeline: what a scan costs from the socket to the editor.
+ * FrameReader decodes, validates and transforms, then, as SoftKeyboard
+ * and ScanCommitter do, the duplicate filter and the frame queue run and
+ * the barcode is committed to a fake InputConnection.</li>
+ * </ul>
+ * A recorded stream runs with {@code -p stream=/path/to/recording}.
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class IngestBenchmark {
+
+	private static final String DEVICE = "00:11:22:33:44:55";
+	// Scans are this many ms apart on the pipeline's clock
+	private static final long SCAN_INTERVAL = 100;
+
+	@Param({ ScanStreams.EAN13, ScanStreams.GS1, ScanStreams.TWO_D, ScanStreams.MIXED })
+	public String stream;
+
+	@Param({ "1024", "64", "20" })
+	public int readSize;
+
+	private ScanStreams scans;
+	private int next;
+
+	private BarcodeFramer framer;
+	private FrameDecoder decoder;
+	private CountingSink counting;
+	private DecodingSink decoding;
+
+	private FrameReader reader;
+	private Dispatch dispatch;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		scans = ScanStreams.load(stream);
+		framer = new BarcodeFramer();
+		decoder = new FrameDecoder(FrameDecoder.DEFAULT_CHARSET, framer.capacity());
+		counting = new CountingSink();
+		decoding = new DecodingSink();
+
+		dispatch = new Dispatch();
+		// The reader is only used as a FrameSink, so it never reads from
+		// the transport nor arms a frame timeout on the wheel
+		reader = new FrameReader.Builder(new PipedTransport(DEVICE), dispatch)
+				.validation(BarcodeValidator.Policy.REJECT)
+				.transform(TransformPipeline.DEFAULT)
+				.wheel(new TimerWheel("benchmark", 10, 16))
+				.build();
+	}
+
+	@Benchmark
+	public long frame() {
+		feed(counting);
+		return counting.bytes;
+	}
+
+	@Benchmark
+	public long decode() {
+		feed(decoding);
+		return decoding.chars;
+	}
+
+	@Benchmark
+	public long pipeline() {
+		feed(reader);
+		dispatch.drain();
+		return dispatch.sink.chars();
+	}
+
+	private void feed(FrameSink sink) {
+		int scan = next;
+		next = scan + 1 == scans.scans() ? 0 : scan + 1;
+
+		byte[] bytes = scans.bytes;
+		int end = scans.offsets[scan + 1];
+		for (int at = scans.offsets[scan]; at < end; at += readSize)
+			framer.feed(bytes, at, Math.min(readSize, end - at), sink);
+	}
+
+	private static final class CountingSink implements FrameSink {
+		long bytes;
+
+		@Override
+		public void onFrame(byte[] frame, int length) {
+			bytes += length;
+		}
+	}
+
+	private final class DecodingSink implements FrameSink {
+		long chars;
+
+		@Override
+		public void onFrame(byte[] frame, int length) {
+			CharBuffer decoded = decoder.decodeToBuffer(frame, length);
+			chars += decoded.remaining();
+		}
+	}
+
+	/**
+	 * The receiving side of SoftKeyboard.onScan and ScanCommitter.run(),
+	 * without Android: duplicates are dropped, the rest goes through the
+	 * frame queue and is committed in one batch edit.
+	 */
+	private static final class Dispatch implements FrameReader.Listener {
+		final DuplicateFilter duplicates = new DuplicateFilter();
+		final FrameQueue queue = new FrameQueue();
+		final ScanFrame produced = new ScanFrame();
+		final ScanFrame consumed = new ScanFrame();
+		final StringBuilder batch = new StringBuilder();
+		final CommitSink sink = new CommitSink();
+		long now = 0;
+
+		@Override
+		public void onBarcode(FrameReader reader, String barcode) {
+			now += SCAN_INTERVAL;
+			if (duplicates.isDuplicate(barcode, now))
+				return;
+			produced.text = barcode;
+			produced.device = DEVICE;
+			produced.receivedAt = now;
+			produced.completedAt = System.nanoTime();
+			queue.offer(produced);
+		}
+
+		void drain() {
+			batch.setLength(0);
+			while (queue.poll(consumed))
+				batch.append(consumed.text);
+			if (batch.length() == 0)
+				return;
+			sink.beginBatchEdit();
+			sink.commitText(batch, 1);
+			sink.endBatchEdit();
+		}
+
+		@Override
+		public void onConnected(FrameReader reader) {
+		}
+
+		@Override
+		public void onRejected(FrameReader reader, CharSequence frame) {
+		}
+
+		@Override
+		public void onPartial(FrameReader reader, String partial) {
+		}
+
+		@Override
+		public void onTimeoutLearned(FrameReader reader, long timeout) {
+		}
+
+		@Override
+		public void onDisconnected(FrameReader reader, IOException cause) {
+		}
+	}
+}
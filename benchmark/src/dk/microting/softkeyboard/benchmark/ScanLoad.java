@@ -0,0 +1,551 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.benchmark;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import dk.microting.softkeyboard.scanner.BarcodeTransport;
+import dk.microting.softkeyboard.scanner.BarcodeValidator;
+import dk.microting.softkeyboard.scanner.DuplicateFilter;
+import dk.microting.softkeyboard.scanner.FrameQueue;
+import dk.microting.softkeyboard.scanner.FrameReader;
+import dk.microting.softkeyboard.scanner.LatencyHistogram;
+import dk.microting.softkeyboard.scanner.PipedTransport;
+import dk.microting.softkeyboard.scanner.ScanFrame;
+import dk.microting.softkeyboard.scanner.TcpTransport;
+
+/**
+ * A simulated scanner for soak and burst tests, run headless:
+ *
+ * <pre>
+ * java -cp out dk.microting.softkeyboard.benchmark.ScanLoad --burst 500 --disconnect-every 2000
+ * </pre>
+ *
+ * The scanner side writes generated scans into a PipedTransport or a
+ * loopback socket. The keyboard side is the real dispatch code: a
+ * FrameReader per connection, the duplicate filter and frame queue as
+ * SoftKeyboard uses them, and a consumer thread committing batches the
+ * way ScanCommitter does to a fake InputConnection. Every connection that
+ * breaks is reopened after a delay, like ReconnectScheduler does.
+ *
+ * Options, with their defaults:
+ * <pre>
+ * --transport pipe      pipe or tcp
+ * --mix mixed           ean13, gs1, 2d or mixed, see ScanStreams
+ * --scans 10000         scans to send
+ * --seconds 0           stop sending after this long, 0 for no limit
+ * --rate 0              scans per second, 0 for as fast as the link takes
+ * --burst 0             scans sent back to back on every connect, like a
+ *                       scanner emptying its batch memory
+ * --burst-interval 0    ms between further bursts, 0 for none
+ * --chunk 0             bytes per write, 0 for the whole scan at once
+ * --gap-us 0            pause between chunks
+ * --jitter-us 0         random extra pause between chunks, up to this
+ * --corrupt 0           fraction of scans with one byte changed
+ * --truncate 0          fraction of scans that stop before the terminator
+ * --disconnect-every 0  cut the link in the middle of every nth scan; the
+ *                       scan is sent again once reconnected
+ * --reconnect-ms 100    delay before the keyboard side reconnects
+ * --frame-timeout 200   ms the reader waits for the rest of a frame
+ * --seed 42
+ * </pre>
+ *
+ * The report has the throughput, the scans lost, what became of corrupted
+ * and truncated scans, and the latency from the first byte written to the
+ * commit.
+ */
+public final class ScanLoad {
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final String DEVICE = "00:00:00:00:00:00";
+	private static final byte[] TERMINATOR = { '\r', '\n' };
+	// About what an RFCOMM socket buffers, so a cut loses what a real one would
+	private static final int LINK_BUFFER = 4096;
+	// As ScanCommitter.DEFAULT_MAX_BATCH
+	private static final int MAX_BATCH = 32;
+	private static final long DRAIN_TIMEOUT = 10 * 1000;
+
+	private String transport = "pipe";
+	private String mix = ScanStreams.MIXED;
+	private int scans = 10000;
+	private long seconds = 0;
+	private double rate = 0;
+	private int burst = 0;
+	private long burstInterval = 0;
+	private int chunk = 0;
+	private long gapMicros = 0;
+	private long jitterMicros = 0;
+	private double corrupt = 0;
+	private double truncate = 0;
+	private int disconnectEvery = 0;
+	private long reconnectMillis = 100;
+	private long frameTimeout = FrameReader.DEFAULT_FRAME_TIMEOUT;
+	private long seed = 42;
+
+	private Random random;
+	private ServerSocket server;
+	private final BlockingQueue<Wire> wires = new LinkedBlockingQueue<Wire>();
+	private final Keyboard keyboard = new Keyboard();
+	private volatile boolean sending = true;
+	private final CountDownLatch closed = new CountDownLatch(1);
+
+	// Texts of the intact scans in flight, with the time their first byte was written
+	private final Map<String, Long> expected = new ConcurrentHashMap<String, Long>();
+	private final Map<String, Boolean> damaged = new ConcurrentHashMap<String, Boolean>();
+
+	private long sent = 0;
+	private long corrupted = 0;
+	private long truncated = 0;
+	private long cuts = 0;
+	private final AtomicLong connects = new AtomicLong();
+
+	public static void main(String[] args) throws Exception {
+		ScanLoad load = new ScanLoad();
+		try {
+			load.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+		load.run();
+	}
+
+	private void parse(String[] args) {
+		for (int i = 0; i < args.length; i++) {
+			String name = args[i];
+			if (i + 1 == args.length)
+				throw new IllegalArgumentException("Missing value for " + name);
+			String value = args[++i];
+			try {
+				if (name.equals("--transport"))
+					transport = value;
+				else if (name.equals("--mix"))
+					mix = value;
+				else if (name.equals("--scans"))
+					scans = Integer.parseInt(value);
+				else if (name.equals("--seconds"))
+					seconds = Long.parseLong(value);
+				else if (name.equals("--rate"))
+					rate = Double.parseDouble(value);
+				else if (name.equals("--burst"))
+					burst = Integer.parseInt(value);
+				else if (name.equals("--burst-interval"))
+					burstInterval = Long.parseLong(value);
+				else if (name.equals("--chunk"))
+					chunk = Integer.parseInt(value);
+				else if (name.equals("--gap-us"))
+					gapMicros = Long.parseLong(value);
+				else if (name.equals("--jitter-us"))
+					jitterMicros = Long.parseLong(value);
+				else if (name.equals("--corrupt"))
+					corrupt = Double.parseDouble(value);
+				else if (name.equals("--truncate"))
+					truncate = Double.parseDouble(value);
+				else if (name.equals("--disconnect-every"))
+					disconnectEvery = Integer.parseInt(value);
+				else if (name.equals("--reconnect-ms"))
+					reconnectMillis = Long.parseLong(value);
+				else if (name.equals("--frame-timeout"))
+					frameTimeout = Long.parseLong(value);
+				else if (name.equals("--seed"))
+					seed = Long.parseLong(value);
+				else
+					throw new IllegalArgumentException("Unknown option " + name);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Bad value for " + name + ": " + value);
+			}
+		}
+		if (!transport.equals("pipe") && !transport.equals("tcp"))
+			throw new IllegalArgumentException("Unknown transport " + transport);
+	}
+
+	private void run() throws Exception {
+		random = new Random(seed);
+		if (transport.equals("tcp"))
+			server = new ServerSocket(0, 1, InetAddress.getByName(TcpTransport.LOCALHOST));
+
+		keyboard.start();
+		connect();
+
+		long started = System.nanoTime();
+		send(started);
+		long stopped = System.nanoTime();
+
+		// Let the keyboard side deliver what is still on its way
+		closed.await(DRAIN_TIMEOUT, TimeUnit.MILLISECONDS);
+		keyboard.finish();
+		long drained = System.nanoTime();
+		if (server != null)
+			server.close();
+
+		report(stopped - started, drained - started);
+	}
+
+	private void send(long started) throws IOException, InterruptedException {
+		Wire wire = nextWire();
+		long deadline = seconds > 0 ? started + TimeUnit.SECONDS.toNanos(seconds) : Long.MAX_VALUE;
+		long interval = rate > 0 ? (long) (1e9 / rate) : 0;
+		long nextAt = System.nanoTime();
+		long nextBurstAt = burstInterval > 0 ? started + TimeUnit.MILLISECONDS.toNanos(burstInterval) : Long.MAX_VALUE;
+		int burstLeft = burst;
+
+		while (sent < scans && System.nanoTime() < deadline) {
+			long now = System.nanoTime();
+			if (now >= nextBurstAt) {
+				burstLeft = burst;
+				nextBurstAt = now + TimeUnit.MILLISECONDS.toNanos(burstInterval);
+			}
+			if (burstLeft > 0) {
+				burstLeft--;
+				nextAt = now;
+			} else if (interval > 0) {
+				nextAt += interval;
+				park(nextAt - now);
+			}
+
+			String text = scan();
+			byte[] bytes = text.getBytes(LATIN1);
+			sent++;
+
+			if (disconnectEvery > 0 && sent % disconnectEvery == 0) {
+				// Half the scan, then the link drops; the scanner sends it again
+				cuts++;
+				write(wire, bytes, bytes.length / 2, false);
+				wire.cut();
+				wire = nextWire();
+				burstLeft = burst;
+				nextAt = System.nanoTime();
+			}
+
+			if (random.nextDouble() < truncate) {
+				truncated++;
+				int length = 1 + random.nextInt(bytes.length - 1);
+				damaged.put(new String(bytes, 0, length, LATIN1), Boolean.TRUE);
+				write(wire, bytes, length, false);
+				// Quiet long enough for the reader to give up on the frame
+				park(TimeUnit.MILLISECONDS.toNanos(frameTimeout * 2));
+				continue;
+			}
+
+			if (random.nextDouble() < corrupt) {
+				corrupted++;
+				int at = random.nextInt(bytes.length);
+				bytes[at] = (byte) (bytes[at] == '0' ? '1' : '0');
+				damaged.put(new String(bytes, LATIN1), Boolean.TRUE);
+				write(wire, bytes, bytes.length, true);
+				continue;
+			}
+
+			expected.put(text, Long.valueOf(System.nanoTime()));
+			write(wire, bytes, bytes.length, true);
+		}
+
+		sending = false;
+		wire.hangUp();
+	}
+
+	private String scan() {
+		String text;
+		if (ScanStreams.EAN13.equals(mix))
+			text = ScanStreams.ean13(random);
+		else if (ScanStreams.GS1.equals(mix))
+			text = ScanStreams.gs1(random);
+		else if (ScanStreams.TWO_D.equals(mix))
+			text = ScanStreams.twoD(random);
+		else if (ScanStreams.MIXED.equals(mix))
+			text = ScanStreams.mixed(random);
+		else
+			throw new IllegalArgumentException("Unknown mix: " + mix);
+		return text;
+	}
+
+	private void write(Wire wire, byte[] bytes, int length, boolean terminate) throws IOException {
+		int step = chunk > 0 ? chunk : length;
+		for (int at = 0; at < length; at += step) {
+			if (at > 0)
+				pause();
+			wire.write(bytes, at, Math.min(step, length - at));
+		}
+		if (terminate) {
+			if (chunk > 0)
+				pause();
+			wire.write(TERMINATOR, 0, TERMINATOR.length);
+		}
+	}
+
+	private void pause() {
+		long micros = gapMicros;
+		if (jitterMicros > 0)
+			micros += (long) (random.nextDouble() * jitterMicros);
+		if (micros > 0)
+			park(TimeUnit.MICROSECONDS.toNanos(micros));
+	}
+
+	private static void park(long nanos) {
+		long until = System.nanoTime() + nanos;
+		for (long left = nanos; left > 0; left = until - System.nanoTime())
+			LockSupport.parkNanos(left);
+	}
+
+	/** Waits for the keyboard side to connect. */
+	private Wire nextWire() throws IOException, InterruptedException {
+		if (server != null)
+			return new SocketWire(server.accept());
+		return wires.take();
+	}
+
+	/** Opens a connection from the keyboard side, as a new link does. */
+	private void connect() {
+		BarcodeTransport link;
+		if (server != null) {
+			link = new TcpTransport(server.getLocalPort());
+		} else {
+			PipedTransport pipe = new PipedTransport(DEVICE, LINK_BUFFER);
+			wires.add(new PipeWire(pipe));
+			link = pipe;
+		}
+
+		FrameReader reader = new FrameReader.Builder(link, keyboard)
+				.fixedFrameTimeout(frameTimeout)
+				.validation(BarcodeValidator.Policy.REJECT)
+				.build();
+		new Thread(reader, "ScanLoad reader " + connects.incrementAndGet()).start();
+	}
+
+	private void report(long sendNanos, long totalNanos) {
+		long delivered = keyboard.delivered.get();
+		long damagedDelivered = keyboard.damagedDelivered.get();
+		long unexpected = keyboard.unexpected.get();
+
+		System.out.println("Transport " + transport + ", mix " + mix + ", " + connects.get() + " connections");
+		System.out.printf("Sent %d scans in %.2f s, %.0f scans/s%n", Long.valueOf(sent), Double.valueOf(sendNanos / 1e9),
+				Double.valueOf(sent * 1e9 / Math.max(1, sendNanos)));
+		System.out.printf("Delivered %d scans, %.0f scans/s until drained%n", Long.valueOf(delivered),
+				Double.valueOf(delivered * 1e9 / Math.max(1, totalNanos)));
+		System.out.println("Lost " + expected.size() + " of " + (sent - corrupted - truncated) + " intact scans");
+		System.out.println("Damaged: " + corrupted + " corrupted, " + truncated + " truncated, " + cuts + " cut by a disconnect");
+		System.out.println("Rejected " + keyboard.rejected.get() + ", damaged but delivered " + damagedDelivered
+				+ ", fragments or merged frames delivered " + unexpected);
+		System.out.println("Duplicates suppressed " + keyboard.duplicates.suppressed()
+				+ ", queue dropped " + keyboard.queue.dropped() + ", high water " + keyboard.queue.highWater());
+		System.out.println("Commits " + keyboard.sink.commits());
+		System.out.println("Latency, first byte to commit, ms: " + keyboard.latency);
+	}
+
+	/**
+	 * The keyboard side: what SoftKeyboard.onScan does on the reader
+	 * thread, and what ScanCommitter does on the main thread, here a
+	 * thread of its own.
+	 */
+	private final class Keyboard extends Thread implements FrameReader.Listener {
+		final DuplicateFilter duplicates = new DuplicateFilter();
+		final FrameQueue queue = new FrameQueue();
+		final ScanFrame produced = new ScanFrame();
+		final CommitSink sink = new CommitSink();
+		final LatencyHistogram latency = new LatencyHistogram();
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicLong damagedDelivered = new AtomicLong();
+		final AtomicLong unexpected = new AtomicLong();
+		final AtomicLong rejected = new AtomicLong();
+
+		private final Object signal = new Object();
+		private volatile boolean finishing = false;
+
+		Keyboard() {
+			super("ScanLoad keyboard");
+		}
+
+		@Override
+		public void onBarcode(FrameReader reader, String barcode) {
+			synchronized (queue) {
+				if (duplicates.isDuplicate(barcode, TimeUnit.NANOSECONDS.toMillis(System.nanoTime())))
+					return;
+				produced.text = barcode;
+				produced.device = DEVICE;
+				produced.completedAt = System.nanoTime();
+				queue.offer(produced);
+			}
+			synchronized (signal) {
+				signal.notify();
+			}
+		}
+
+		@Override
+		public void onRejected(FrameReader reader, CharSequence frame) {
+			rejected.incrementAndGet();
+		}
+
+		@Override
+		public void onDisconnected(FrameReader reader, IOException cause) {
+			if (!sending) {
+				closed.countDown();
+				return;
+			}
+			try {
+				Thread.sleep(reconnectMillis);
+			} catch (InterruptedException e) {
+				return;
+			}
+			connect();
+		}
+
+		@Override
+		public void run() {
+			ScanFrame frame = new ScanFrame();
+			StringBuilder batch = new StringBuilder();
+			String[] texts = new String[MAX_BATCH];
+
+			while (true) {
+				int frames = 0;
+				batch.setLength(0);
+				while (frames < MAX_BATCH && queue.poll(frame)) {
+					texts[frames++] = frame.text;
+					batch.append(frame.text);
+				}
+
+				if (frames == 0) {
+					if (finishing)
+						return;
+					synchronized (signal) {
+						if (queue.size() == 0) {
+							try {
+								signal.wait(10);
+							} catch (InterruptedException e) {
+								return;
+							}
+						}
+					}
+					continue;
+				}
+
+				sink.beginBatchEdit();
+				sink.commitText(batch, 1);
+				sink.endBatchEdit();
+				long committedAt = System.nanoTime();
+
+				for (int i = 0; i < frames; i++) {
+					Long firstByteAt = expected.remove(texts[i]);
+					if (firstByteAt != null) {
+						delivered.incrementAndGet();
+						latency.record(committedAt - firstByteAt.longValue());
+					} else if (damaged.containsKey(texts[i])) {
+						damagedDelivered.incrementAndGet();
+					} else {
+						unexpected.incrementAndGet();
+					}
+					texts[i] = null;
+				}
+			}
+		}
+
+		/** Drains the queue and stops. */
+		void finish() throws InterruptedException {
+			finishing = true;
+			synchronized (signal) {
+				signal.notify();
+			}
+			join();
+		}
+
+		@Override
+		public void onConnected(FrameReader reader) {
+		}
+
+		@Override
+		public void onPartial(FrameReader reader, String partial) {
+		}
+
+		@Override
+		public void onTimeoutLearned(FrameReader reader, long timeout) {
+		}
+	}
+
+	/** The scanner's end of a connection. */
+	private interface Wire {
+		void write(byte[] bytes, int offset, int length) throws IOException;
+
+		/** Breaks the connection, losing what the reader has not read. */
+		void cut() throws IOException;
+
+		/** Ends the connection after what was written. */
+		void hangUp() throws IOException;
+	}
+
+	private static final class PipeWire implements Wire {
+		private final PipedTransport pipe;
+
+		PipeWire(PipedTransport pipe) {
+			this.pipe = pipe;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			pipe.write(bytes, offset, length);
+		}
+
+		@Override
+		public void cut() {
+			pipe.fail(new IOException("Link lost"));
+		}
+
+		@Override
+		public void hangUp() {
+			pipe.hangUp();
+		}
+	}
+
+	private static final class SocketWire implements Wire {
+		private final Socket socket;
+		private final OutputStream out;
+
+		SocketWire(Socket socket) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			this.out = socket.getOutputStream();
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) throws IOException {
+			out.write(bytes, offset, length);
+		}
+
+		@Override
+		public void cut() throws IOException {
+			// A reset instead of an orderly close
+			socket.setSoLinger(true, 0);
+			socket.close();
+		}
+
+		@Override
+		public void hangUp() throws IOException {
+			out.flush();
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Byte streams as a scanner sends them, cut into scans.
+ *
+ * The synthetic mixes are generated from a fixed seed, so every run and
+ * every fork sees the same stream:
+ * <ul>
+ * <li>ean13: retail EAN-13 codes with valid check digits</li>
+ * <li>gs1: GS1-128 with AIM identifier, GTIN, expiry, lot and serial</li>
+ * <li>2d: long QR and GS1 DataMatrix payloads of several hundred bytes</li>
+ * <li>mixed: mostly EAN-13, some GS1-128, the odd 2D code</li>
+ * </ul>
+ * Each mix repeats a few scans right away, the way a trigger held too long
+ * does, so the duplicate filter has something to suppress.
+ *
+ * A recorded stream is the raw bytes captured from a scanner, with its own
+ * terminators, e.g. saved from a PipedTransport or a TCP bridge.
+ */
+public final class ScanStreams {
+
+	public static final String EAN13 = "ean13";
+	public static final String GS1 = "gs1";
+	public static final String TWO_D = "2d";
+	public static final String MIXED = "mixed";
+
+	/** Scans in a synthetic stream. */
+	public static final int SCANS = 1024;
+
+	private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+	private static final char GS = 0x1D;
+	private static final String TERMINATOR = "\r\n";
+	// One scan in this many is sent twice
+	private static final int REPEAT_EVERY = 20;
+
+	/** The whole stream, terminators included. */
+	public final byte[] bytes;
+	/** Where each scan starts in {@link #bytes}, one more entry for the end. */
+	public final int[] offsets;
+
+	private ScanStreams(byte[] bytes, int[] offsets) {
+		this.bytes = bytes;
+		this.offsets = offsets;
+	}
+
+	public int scans() {
+		return offsets.length - 1;
+	}
+
+	/** @return the bytes of scan {@code i}, terminator included */
+	public int length(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+
+	/** @return scan {@code i} decoded, without its terminator */
+	public String text(int i) {
+		int end = offsets[i + 1];
+		while (end > offsets[i] && (bytes[end - 1] == '\r' || bytes[end - 1] == '\n'))
+			end--;
+		return new String(bytes, offsets[i], end - offsets[i], LATIN1);
+	}
+
+	/**
+	 * @param source one of the mix names, or the path of a recorded stream
+	 */
+	public static ScanStreams load(String source) throws IOException {
+		if (EAN13.equals(source) || GS1.equals(source) || TWO_D.equals(source) || MIXED.equals(source))
+			return generate(source, SCANS, 42);
+		return split(read(new File(source)));
+	}
+
+	public static ScanStreams generate(String mix, int scans, long seed) {
+		Random random = new Random(seed);
+		StringBuilder stream = new StringBuilder();
+		List<Integer> offsets = new ArrayList<Integer>();
+		String previous = null;
+
+		while (offsets.size() < scans) {
+			String scan;
+			if (previous != null && random.nextInt(REPEAT_EVERY) == 0)
+				scan = previous;
+			else if (EAN13.equals(mix))
+				scan = ean13(random);
+			else if (GS1.equals(mix))
+				scan = gs1(random);
+			else if (TWO_D.equals(mix))
+				scan = twoD(random);
+			else if (MIXED.equals(mix))
+				scan = mixed(random);
+			else
+				throw new IllegalArgumentException("Unknown mix: " + mix);
+
+			offsets.add(Integer.valueOf(stream.length()));
+			stream.append(scan).append(TERMINATOR);
+			previous = scan;
+		}
+		offsets.add(Integer.valueOf(stream.length()));
+
+		return new ScanStreams(stream.toString().getBytes(LATIN1), toArray(offsets));
+	}
+
+	/** Cuts a recorded stream after every CR, LF or CR LF. */
+	static ScanStreams split(byte[] bytes) {
+		List<Integer> offsets = new ArrayList<Integer>();
+		int start = 0;
+		boolean content = false;
+		for (int i = 0; i < bytes.length; i++) {
+			if (bytes[i] != '\r' && bytes[i] != '\n') {
+				content = true;
+				continue;
+			}
+			if (bytes[i] == '\r' && i + 1 < bytes.length && bytes[i + 1] == '\n')
+				i++;
+			// Empty lines are not scans, they go with the next one
+			if (content) {
+				offsets.add(Integer.valueOf(start));
+				start = i + 1;
+				content = false;
+			}
+		}
+		if (offsets.isEmpty())
+			throw new IllegalArgumentException("No terminated scans in the recording");
+		offsets.add(Integer.valueOf(start));
+
+		byte[] complete = new byte[start];
+		System.arraycopy(bytes, 0, complete, 0, start);
+		return new ScanStreams(complete, toArray(offsets));
+	}
+
+	static String ean13(Random random) {
+		StringBuilder code = new StringBuilder(13);
+		// GS1 Denmark prefix, like the products in our stores
+		code.append("57");
+		digits(random, code, 10);
+		code.append(checkDigit(code));
+		return code.toString();
+	}
+
+	static String gs1(Random random) {
+		StringBuilder code = new StringBuilder(64);
+		code.append("]C1");
+		code.append("01").append(gtin(random));
+		code.append("17").append(String.format("%02d%02d%02d", 26 + random.nextInt(4), 1 + random.nextInt(12), 1 + random.nextInt(28)));
+		code.append("10");
+		alphanumeric(random, code, 4 + random.nextInt(10));
+		code.append(GS).append("21");
+		alphanumeric(random, code, 6 + random.nextInt(14));
+		return code.toString();
+	}
+
+	static String twoD(Random random) {
+		StringBuilder code = new StringBuilder(1024);
+		if (random.nextBoolean()) {
+			// A GS1 DataMatrix carrying company internal data
+			code.append("]d2");
+			code.append("01").append(gtin(random));
+			code.append("21");
+			alphanumeric(random, code, 20);
+			for (int ai = 91; ai < 91 + 3 + random.nextInt(6); ai++) {
+				code.append(GS).append(ai);
+				alphanumeric(random, code, 90);
+			}
+		} else {
+			// A QR code with a document or a delivery note
+			code.append("]Q1");
+			alphanumeric(random, code, 300 + random.nextInt(700));
+		}
+		return code.toString();
+	}
+
+	static String mixed(Random random) {
+		int pick = random.nextInt(100);
+		if (pick < 70)
+			return ean13(random);
+		if (pick < 95)
+			return gs1(random);
+		return twoD(random);
+	}
+
+	private static String gtin(Random random) {
+		StringBuilder gtin = new StringBuilder(14);
+		gtin.append('0').append("57");
+		digits(random, gtin, 10);
+		gtin.append(checkDigit(gtin));
+		return gtin.toString();
+	}
+
+	private static void digits(Random random, StringBuilder to, int count) {
+		for (int i = 0; i < count; i++)
+			to.append((char) ('0' + random.nextInt(10)));
+	}
+
+	private static void alphanumeric(Random random, StringBuilder to, int count) {
+		final String chars = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ";
+		for (int i = 0; i < count; i++)
+			to.append(chars.charAt(random.nextInt(chars.length())));
+	}
+
+	/** GS1 mod 10 over the digits so far, weights 3 and 1 from the right. */
+	private static char checkDigit(CharSequence digits) {
+		int sum = 0;
+		for (int i = digits.length() - 1, weight = 3; i >= 0; i--, weight = 4 - weight)
+			sum += (digits.charAt(i) - '0') * weight;
+		return (char) ('0' + (10 - sum % 10) % 10);
+	}
+
+	private static byte[] read(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				out.write(buffer, 0, n);
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	private static int[] toArray(List<Integer> list) {
+		int[] array = new int[list.size()];
+		for (int i = 0; i < array.length; i++)
+			array[i] = list.get(i).intValue();
+		return array;
+	}
+}
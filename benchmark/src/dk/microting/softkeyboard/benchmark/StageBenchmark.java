@@ -0,0 +1,110 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.microting.softkeyboard.scanner.BarcodeValidator;
+import dk.microting.softkeyboard.scanner.DuplicateFilter;
+import dk.microting.softkeyboard.scanner.TransformPipeline;
+
+/**
+ * The per scan stages of the ingest path on their own, on barcodes
+ * decoded up front. One operation is one scan, as in IngestBenchmark.
+ *
+ * The transforms are the ones scanners are configured with in the field:
+ * the default that strips CR LF, the AIM identifier stripped and a tab
+ * appended, and a GS1 message rewritten to GTIN and lot.
+ */
+@BenchmarkMode({ Mode.AverageTime, Mode.Throughput })
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StageBenchmark {
+
+	private static final long SCAN_INTERVAL = 100;
+
+	@Param({ ScanStreams.EAN13, ScanStreams.GS1, ScanStreams.TWO_D, ScanStreams.MIXED })
+	public String stream;
+
+	@Param({ "default", "aim", "gs1" })
+	public String transform;
+
+	private String[] barcodes;
+	private int next;
+
+	private BarcodeValidator validator;
+	private TransformPipeline pipeline;
+	private final StringBuilder scratch = new StringBuilder();
+	private DuplicateFilter duplicates;
+	private long now;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		ScanStreams scans = ScanStreams.load(stream);
+		barcodes = new String[scans.scans()];
+		for (int i = 0; i < barcodes.length; i++)
+			barcodes[i] = scans.text(i);
+
+		validator = new BarcodeValidator(BarcodeValidator.Policy.REJECT);
+		duplicates = new DuplicateFilter();
+		if (transform.equals("default"))
+			pipeline = TransformPipeline.DEFAULT;
+		else if (transform.equals("aim"))
+			pipeline = TransformPipeline.parse("aim\nsuffix \\t");
+		else if (transform.equals("gs1"))
+			pipeline = TransformPipeline.parse("gs1 {01}\\t{10}");
+		else
+			throw new IllegalArgumentException("Unknown transform: " + transform);
+	}
+
+	@Benchmark
+	public boolean validate() {
+		return validator.accept(next());
+	}
+
+	@Benchmark
+	public String transform() {
+		return pipeline.apply(next(), scratch);
+	}
+
+	@Benchmark
+	public boolean dedup() {
+		now += SCAN_INTERVAL;
+		return duplicates.isDuplicate(next(), now);
+	}
+
+	private String next() {
+		int scan = next;
+		next = scan + 1 == barcodes.length ? 0 : scan + 1;
+		return barcodes[scan];
+	}
+}
@@ -15,11 +15,30 @@
 
 package dk.microting.softkeyboard;
 
+/**
+ * How a ConnectedThread reports to its owner. Called on the reader thread,
+ * and on the shared FrameDelivery thread for frames ended by the timeout.
+ */
 public interface BarcodeCallback {
 
-	void barcodeCallBack(String barcode);
+	/**
+	 * @param barcode the decoded and transformed barcode
+	 * @param address the Bluetooth address of the scanner that read it
+	 */
+	void barcodeCallBack(String barcode, String address);
+	
+	/**
+	 * The start of a barcode still arriving, when previews are on for the
+	 * scanner. An empty partial withdraws the preview: the frame was
+	 * dropped and no barcode follows.
+	 */
+	void barcodePartial(String partial, String address);
 	
 	void barcodeScannerConnect();
 	
+	/**
+	 * The link is gone and every frame read from it has been delivered.
+	 * This is the last call the reader makes.
+	 */
 	void barcodeScannerDisconnect();
 }
@@ -16,109 +16,128 @@
 package dk.microting.softkeyboard;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.Timer;
-import java.util.TimerTask;
 
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
+import dk.microting.softkeyboard.scanner.BarcodeFramer;
+import dk.microting.softkeyboard.scanner.BarcodeTransport;
+import dk.microting.softkeyboard.scanner.BarcodeValidator;
+import dk.microting.softkeyboard.scanner.FrameDecoder;
+import dk.microting.softkeyboard.scanner.FrameReader;
+import dk.microting.softkeyboard.scanner.ReaderWatchdog;
+import dk.microting.softkeyboard.scanner.ScanCounters;
+import dk.microting.softkeyboard.scanner.TransformPipeline;
 
-public class ConnectedThread extends Thread {
+/**
+ * The reader thread of one scanner. The ingest itself is done by a
+ * {@link FrameReader} over a {@link BarcodeTransport}; this thread reports
+ * to the {@link BarcodeCallback} and stores what the reader learns in the
+ * scanner's preferences. While connected the reader is watched by the
+ * shared {@link ReaderWatchdog}.
+ */
+public class ConnectedThread extends Thread implements FrameReader.Listener {
 	
 	private String TAG = "ConnectedThread";
 	
-	private final BluetoothSocket mmSocket;
-	private final InputStream mmInStream;
-	private final BarcodeCallback bcb;
-	
-	private String receivedChars = "";
-	private Timer timerToSent;
-	private boolean timerIsRunning = false;
+	public static final long DEFAULT_FRAME_TIMEOUT = FrameReader.DEFAULT_FRAME_TIMEOUT;
 	
-	private boolean run = true;
+	private final FrameReader reader;
+	private final BarcodeCallback bcb;
+	private final ScannerPreferences preferences;
+	private final String address;
 
-	public ConnectedThread(BluetoothSocket socket, BarcodeCallback bcb) {
+	/**
+	 * Learns the inter-byte timeout from the gaps between reads, starting
+	 * from the value stored for this scanner, and decodes, validates and
+	 * transforms barcodes as configured for it.
+	 * 
+	 * @param terminators the {@link BarcodeFramer}.TERMINATOR_* bits ending a frame,
+	 *                    0 for scanners that send no suffix at all
+	 * @param preferences the per scanner settings, may be null
+	 */
+	public ConnectedThread(BarcodeTransport transport, BarcodeCallback bcb, int terminators, ScannerPreferences preferences) {
+		this(transport, bcb, terminators, preferences, null);
+	}
+	
+	/** @param counters where the reader counts bytes and rejected frames, may be null */
+	public ConnectedThread(BarcodeTransport transport, BarcodeCallback bcb, int terminators, ScannerPreferences preferences, ScanCounters counters) {
 		Log.d(TAG, "create ConnectedThread");
-		mmSocket = socket;
-		
-		InputStream tmpIn = null;
 		this.bcb = bcb;
-		this.timerToSent = new Timer();
-
-		// Get the BluetoothSocket input and output streams
-		try {
-			tmpIn = socket.getInputStream();
-		} catch (IOException e) {
-			Log.e(TAG, "temp sockets not created", e);
+		this.preferences = preferences;
+		this.address = transport.getAddress();
+		
+		FrameReader.Builder builder = new FrameReader.Builder(transport, this).terminators(terminators).counters(counters);
+		if(preferences != null)
+		{
+			builder.frameTimeout(preferences.getFrameTimeout(address, DEFAULT_FRAME_TIMEOUT))
+					.charset(preferences.getCharset(address, FrameDecoder.DEFAULT_CHARSET))
+					.validation(preferences.getValidation(address, BarcodeValidator.Policy.FLAG))
+					.transform(preferences.getTransform(address, TransformPipeline.DEFAULT))
+					.silenceLimit(preferences.getSilenceLimit(address, FrameReader.DEFAULT_SILENCE_LIMIT))
+					.heartbeat(preferences.getHeartbeat(address, null))
+					.heartbeatInterval(preferences.getHeartbeatInterval(address, 0))
+					.preview(preferences.getPreview(address, false));
 		}
-
-		mmInStream = tmpIn;
+		this.reader = builder.build();
 	}
 
 	public void run() {
 		Log.i(TAG, "BEGIN mConnectedThread");
-		byte[] buffer = new byte[1024];
-		int bytes;
-		
-		try {
-			mmSocket.connect();
-		} catch (IOException e) {
-			Log.d(TAG, e.getMessage());
-			e.printStackTrace();
-			bcb.barcodeScannerDisconnect();
-			run = false;
-		}
-		
-		if(run)
-			bcb.barcodeScannerConnect();
-		
-		// Keep listening to the InputStream while connected
-		while (run) {
-			try {
-				// Read from the InputStream
-				bytes = mmInStream.read(buffer);
-				
-				for(int i = 0; i < bytes; i++)
-					receivedChars += (char)buffer[i];
-				
-				Log.d(TAG, "Received: " + receivedChars);
-				
-				if(bcb != null)
-				{
-					if(!timerIsRunning)
-					{
-						timerIsRunning = true;
-						timerToSent.schedule(new TimerTask() {
-							@Override
-							public void run() {
-								callback();
-								timerIsRunning = false;
-							}
-						}, 200);
-					}
-				}
-				
-			} catch (IOException e) {
-				Log.e(TAG, "disconnected", e);
-				bcb.barcodeScannerDisconnect();
-				break;
-			}
-		}
+		reader.run();
 	}
 
 	public void cancel() {
 		Log.d(TAG, "Cancelling the thread!");
-		try {
-			run = false;
-			mmSocket.close();
-		} catch (IOException e) {
-			Log.e(TAG, "close() of connect socket failed", e);
+		reader.cancel();
+	}
+	
+	public FrameReader getReader() {
+		return reader;
+	}
+	
+	@Override
+	public void onConnected(FrameReader reader) {
+		ReaderWatchdog.shared().watch(reader);
+		if(bcb != null)
+			bcb.barcodeScannerConnect();
+	}
+	
+	@Override
+	public void onBarcode(FrameReader reader, String barcode) {
+		if(bcb != null)
+			bcb.barcodeCallBack(barcode, address);
+	}
+	
+	@Override
+	public void onRejected(FrameReader reader, CharSequence frame) {
+		Log.w(TAG, "Rejected a frame that failed its check digit");
+		// Only a scanner with previews has one to take back
+		if(bcb != null && reader.isPreview())
+			bcb.barcodePartial("", address);
+	}
+	
+	@Override
+	public void onPartial(FrameReader reader, String partial) {
+		if(bcb != null)
+			bcb.barcodePartial(partial, address);
+	}
+	
+	@Override
+	public void onTimeoutLearned(FrameReader reader, long timeout) {
+		if(preferences != null)
+		{
+			Log.d(TAG, "Learned frame timeout " + timeout + " ms for " + address);
+			preferences.setFrameTimeout(address, timeout);
 		}
 	}
 	
-	private void callback()
-	{
-		bcb.barcodeCallBack(receivedChars);
-		receivedChars = "";
+	@Override
+	public void onDisconnected(FrameReader reader, IOException cause) {
+		ReaderWatchdog.shared().unwatch(reader);
+		if(cause != null)
+			Log.e(TAG, "disconnected", cause);
+		
+		// Last thing the thread does, everything read has been delivered
+		if(bcb != null)
+			bcb.barcodeScannerDisconnect();
 	}
 }
@@ -0,0 +1,180 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.util.ArrayList;
+
+import android.os.Handler;
+import android.util.Log;
+import android.view.inputmethod.InputConnection;
+import dk.microting.softkeyboard.scanner.ScanJournal;
+
+/**
+ * Scans that could not be committed because no editor was bound, kept
+ * until the next field gets focus.
+ * 
+ * The scans themselves live in the journal as pending records, this keeps
+ * the list in memory. Scans left over from an earlier run of the process
+ * are read from the journal on a background thread the first time they are
+ * needed, so onCreate never waits for it.
+ * 
+ * At most {@link #MAX_DEFERRED} scans are held, oldest first. Scans past
+ * that stay pending in the journal and are read back by a later run.
+ * 
+ * Main thread only, apart from the loader thread it starts.
+ */
+public class DeferredScans {
+	
+	private String TAG = "DeferredScans";
+	
+	/** What to do with deferred scans when an application's field gets focus. */
+	public enum Policy {
+		REPLAY,
+		DISCARD,
+		/** Offer both in the candidate strip. */
+		ASK
+	}
+	
+	public static final int MAX_DEFERRED = 1000;
+	
+	private final ScanJournal journal;
+	private final Handler handler;
+	
+	private final ArrayList<String> texts = new ArrayList<String>();
+	private final ArrayList<Long> positions = new ArrayList<Long>();
+	private final StringBuilder batch = new StringBuilder();
+	
+	private boolean loaded = false;
+	private boolean loading = false;
+	
+	public DeferredScans(ScanJournal journal, Handler handler) {
+		this.journal = journal;
+		this.handler = handler;
+	}
+	
+	/** @return false if full, the scan is then only kept in the journal */
+	public boolean add(String text, long journalPosition) {
+		if(texts.size() >= MAX_DEFERRED)
+			return false;
+		texts.add(text);
+		positions.add(journalPosition);
+		return true;
+	}
+	
+	public int size() {
+		return texts.size();
+	}
+	
+	public boolean isLoaded() {
+		return loaded;
+	}
+	
+	/**
+	 * Reads the pending scans of earlier runs from the journal in the
+	 * background, then runs {@code onLoaded} on the main thread.
+	 */
+	public void load(final Runnable onLoaded) {
+		if(loaded || loading)
+			return;
+		loading = true;
+		
+		new Thread("DeferredScansLoader") {
+			@Override
+			public void run() {
+				final ArrayList<String> foundTexts = new ArrayList<String>();
+				final ArrayList<Long> foundPositions = new ArrayList<Long>();
+				
+				journal.readPending(new ScanJournal.Visitor() {
+					@Override
+					public void visit(long position, long sequence, long time, String device, String text) {
+						if(foundTexts.size() >= MAX_DEFERRED)
+							return;
+						foundTexts.add(text);
+						foundPositions.add(position);
+					}
+				});
+				
+				handler.post(new Runnable() {
+					@Override
+					public void run() {
+						Log.d(TAG, "Loaded " + foundTexts.size() + " pending scans from the journal");
+						// Older scans go first
+						texts.addAll(0, foundTexts);
+						positions.addAll(0, foundPositions);
+						// The newest of this run stay in the journal
+						while(texts.size() > MAX_DEFERRED)
+						{
+							texts.remove(texts.size() - 1);
+							positions.remove(positions.size() - 1);
+						}
+						loading = false;
+						loaded = true;
+						if(onLoaded != null)
+							onLoaded.run();
+					}
+				});
+			}
+		}.start();
+	}
+	
+	/**
+	 * Commits every deferred scan in one batch edit.
+	 * 
+	 * @param separator written after every scan
+	 * @return true if the editor accepted them
+	 */
+	public boolean replay(InputConnection ic, String separator) {
+		if(texts.isEmpty())
+			return true;
+		
+		batch.setLength(0);
+		for(String text : texts)
+			batch.append(text).append(separator);
+		
+		boolean committed = false;
+		try {
+			ic.beginBatchEdit();
+			try {
+				committed = ic.commitText(batch, 1);
+			} finally {
+				// Left open the editor would hold back every later update
+				ic.endBatchEdit();
+			}
+		} catch (Exception e) {
+			Log.d(TAG, e.getMessage());
+			e.printStackTrace();
+		}
+		batch.setLength(0);
+		
+		if(committed)
+		{
+			Log.d(TAG, "Replayed " + texts.size() + " scans");
+			finish(ScanJournal.DELIVERED);
+		}
+		return committed;
+	}
+	
+	public void discard() {
+		Log.d(TAG, "Discarded " + texts.size() + " scans");
+		finish(ScanJournal.DISCARDED);
+	}
+	
+	private void finish(byte status) {
+		for(Long position : positions)
+			journal.mark(position, status);
+		texts.clear();
+		positions.clear();
+	}
+}
@@ -0,0 +1,157 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.util.Random;
+
+import android.os.Handler;
+import android.util.Log;
+import dk.microting.softkeyboard.scanner.TimerWheel;
+
+/**
+ * Decides when to (re)connect the scanner, so there is never more than one
+ * connect in flight and a field getting focus costs nothing.
+ * 
+ * After a failed or dropped connection the next attempt waits with
+ * exponential backoff and jitter, from {@link #MIN_BACKOFF} up to
+ * {@link #MAX_BACKOFF}, for as long as the scanner is out of range. A
+ * press on the scanner key skips the wait. Disconnecting with the key
+ * stops the scheduler until the key is pressed again.
+ * 
+ * The backoff waits on the shared {@link TimerWheel}, which only posts the
+ * attempt to the handler when it is due.
+ * 
+ * Main thread only; report connection changes through the handler.
+ */
+public class ReconnectScheduler implements Runnable {
+	
+	private String TAG = "ReconnectScheduler";
+	
+	/** Starts one connection attempt. */
+	public interface Connector {
+		/**
+		 * @return false if there was nothing to connect to, true if an attempt
+		 *         was started and will end in onConnected or onDisconnected
+		 */
+		boolean connect();
+	}
+	
+	static final long MIN_BACKOFF = 1000;
+	static final long MAX_BACKOFF = 60 * 1000;
+	
+	private static final int IDLE = 0;
+	private static final int CONNECTING = 1;
+	private static final int CONNECTED = 2;
+	private static final int WAITING = 3;
+	private static final int STOPPED = 4;
+	
+	private final Handler handler;
+	private final Connector connector;
+	private final Random random = new Random();
+	private final TimerWheel wheel;
+	private final TimerWheel.Task due = new TimerWheel.Task() {
+		@Override
+		public void run() {
+			handler.post(ReconnectScheduler.this);
+		}
+	};
+	
+	private int state = IDLE;
+	private int failures = 0;
+	
+	public ReconnectScheduler(Handler handler, Connector connector) {
+		this(handler, connector, TimerWheel.shared());
+	}
+	
+	public ReconnectScheduler(Handler handler, Connector connector, TimerWheel wheel) {
+		this.handler = handler;
+		this.connector = connector;
+		this.wheel = wheel;
+	}
+	
+	/** Connects unless a connection exists, is under way or is backing off. */
+	public void start() {
+		if(state == IDLE)
+			attempt();
+	}
+	
+	/** The user pressed the scanner key: connect now, forgetting the backoff. */
+	public void trigger() {
+		if(state == CONNECTING || state == CONNECTED)
+			return;
+		
+		cancelWait();
+		failures = 0;
+		attempt();
+	}
+	
+	/** The user disconnected on purpose; stay down until {@link #trigger()}. */
+	public void stop() {
+		cancelWait();
+		state = STOPPED;
+	}
+	
+	public void onConnected() {
+		if(state == STOPPED)
+			return;
+		state = CONNECTED;
+		failures = 0;
+	}
+	
+	public void onDisconnected() {
+		// Already backing off if the attempt failed before it got going
+		if(state != CONNECTING && state != CONNECTED)
+			return;
+		failures++;
+		backoff();
+	}
+	
+	public boolean isConnected() {
+		return state == CONNECTED;
+	}
+	
+	@Override
+	public void run() {
+		if(state == WAITING)
+			attempt();
+	}
+	
+	private void attempt() {
+		state = CONNECTING;
+		if(!connector.connect())
+		{
+			failures++;
+			backoff();
+		}
+	}
+	
+	private void backoff() {
+		long delay = MIN_BACKOFF << Math.min(failures - 1, 16);
+		if(delay > MAX_BACKOFF || delay <= 0)
+			delay = MAX_BACKOFF;
+		// Half fixed, half random, so several tablets do not retry in step
+		delay = delay / 2 + (long) (random.nextDouble() * (delay / 2));
+		
+		Log.d(TAG, "Reconnecting in " + delay + " ms after " + failures + " failures");
+		state = WAITING;
+		handler.removeCallbacks(this);
+		wheel.schedule(due, delay);
+	}
+	
+	private void cancelWait() {
+		wheel.cancel(due);
+		handler.removeCallbacks(this);
+	}
+}
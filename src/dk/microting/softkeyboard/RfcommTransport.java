@@ -0,0 +1,88 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import dk.microting.softkeyboard.scanner.BarcodeTransport;
+
+/**
+ * A Bluetooth scanner in SPP mode, read through an RFCOMM socket.
+ * 
+ * The socket does not say when the link under it drops (isConnected()
+ * needs API 14), so the owner reports the system's ACL disconnect through
+ * {@link #linkLost()}.
+ */
+public class RfcommTransport implements BarcodeTransport {
+	
+	private String TAG = "RfcommTransport";
+	
+	private final BluetoothSocket socket;
+	private final String address;
+	
+	private volatile InputStream in;
+	private volatile boolean closed = false;
+	private volatile boolean lost = false;
+	
+	public RfcommTransport(BluetoothSocket socket) {
+		this.socket = socket;
+		this.address = socket.getRemoteDevice() != null ? socket.getRemoteDevice().getAddress() : null;
+	}
+	
+	@Override
+	public void open() throws IOException {
+		if(closed)
+			throw new IOException("Transport closed");
+		
+		socket.connect();
+		in = socket.getInputStream();
+	}
+	
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		InputStream stream = in;
+		if(stream == null)
+			throw new IOException("Transport not open");
+		return stream.read(buffer, offset, length);
+	}
+	
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			Log.e(TAG, "close() of connect socket failed", e);
+		}
+	}
+	
+	/** The system dropped the link to the scanner. */
+	public void linkLost() {
+		lost = true;
+	}
+	
+	@Override
+	public boolean isHealthy() {
+		return in != null && !closed && !lost;
+	}
+	
+	@Override
+	public String getAddress() {
+		return address;
+	}
+}
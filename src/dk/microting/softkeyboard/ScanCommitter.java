@@ -0,0 +1,249 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.inputmethodservice.InputMethodService;
+import android.os.Handler;
+import android.util.Log;
+import android.view.inputmethod.EditorInfo;
+import android.view.inputmethod.InputConnection;
+import dk.microting.softkeyboard.scanner.FrameQueue;
+import dk.microting.softkeyboard.scanner.MetricsRegistry;
+import dk.microting.softkeyboard.scanner.ScanCounters;
+import dk.microting.softkeyboard.scanner.ScanFrame;
+import dk.microting.softkeyboard.scanner.ScanJournal;
+import dk.microting.softkeyboard.scanner.ScanLatency;
+import dk.microting.softkeyboard.scanner.Tracer;
+
+/**
+ * Drains the scan queue on the main thread and commits everything pending
+ * inside a single batch edit, one commit per frame, so a burst of scans
+ * costs the target application one update instead of one per barcode.
+ * 
+ * A drain starts at most maxDelay ms after the first frame of a burst, or
+ * right away once maxBatch frames are waiting. With the default delay of 0
+ * a single scan is never held back.
+ * 
+ * Frames are marked delivered in the journal only after the editor has
+ * accepted the commit. Frames that could not be committed are handed to
+ * the deferred scans, to be replayed when the next field gets focus.
+ * 
+ * Committed frames have their latency recorded per scanner and per target
+ * application, see {@link ScanLatency}.
+ */
+public class ScanCommitter implements Runnable {
+	
+	private String TAG = "ScanCommitter";
+	
+	private static final int TRACE_COMMIT = Tracer.event("commit");
+	
+	public static final int DEFAULT_MAX_BATCH = 32;
+	public static final long DEFAULT_MAX_DELAY = 0;
+	
+	private final InputMethodService service;
+	private final Handler handler;
+	private final FrameQueue queue;
+	private final ScanJournal journal;
+	private final DeferredScans deferred;
+	
+	private final int maxBatch;
+	private final long maxDelay;
+	private final String separator;
+	
+	private ScanPreview preview;
+	private final MetricsRegistry.Distribution batchSizes = new MetricsRegistry.Distribution();
+	
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private final AtomicBoolean expedited = new AtomicBoolean(false);
+	
+	// Main thread only
+	private final ScanFrame frame = new ScanFrame();
+	private final StringBuilder batch = new StringBuilder();
+	private final String[] texts;
+	private final long[] journalPositions;
+	private final ScanCounters[] counters;
+	private final long[] firstByteAts;
+	private final long[] completedAts;
+	private final long[] dequeuedAts;
+	// Written on the main thread, read by whoever reports
+	private final ConcurrentHashMap<String, ScanLatency> packageLatency = new ConcurrentHashMap<String, ScanLatency>();
+	
+	public ScanCommitter(InputMethodService service, Handler handler, FrameQueue queue, ScanJournal journal, DeferredScans deferred) {
+		this(service, handler, queue, journal, deferred, DEFAULT_MAX_BATCH, DEFAULT_MAX_DELAY, "");
+	}
+	
+	/**
+	 * @param journal where delivery is recorded, may be null
+	 * @param deferred where frames go that could not be committed, may be null
+	 * @param maxBatch most frames committed in one batch edit
+	 * @param maxDelay ms the first frame of a burst may wait for more
+	 * @param separator written after every committed frame, for example
+	 *                  "\n" to put each scan on its own line
+	 */
+	public ScanCommitter(InputMethodService service, Handler handler, FrameQueue queue, ScanJournal journal, DeferredScans deferred, int maxBatch, long maxDelay, String separator) {
+		if(maxBatch <= 0)
+			throw new IllegalArgumentException("maxBatch must be positive: " + maxBatch);
+		
+		this.service = service;
+		this.handler = handler;
+		this.queue = queue;
+		this.journal = journal;
+		this.deferred = deferred;
+		this.texts = new String[maxBatch];
+		this.journalPositions = new long[maxBatch];
+		this.counters = new ScanCounters[maxBatch];
+		this.firstByteAts = new long[maxBatch];
+		this.completedAts = new long[maxBatch];
+		this.dequeuedAts = new long[maxBatch];
+		this.maxBatch = maxBatch;
+		this.maxDelay = maxDelay;
+		this.separator = separator != null ? separator : "";
+	}
+	
+	/** @param preview told when a commit replaced the preview, may be null */
+	public void setPreview(ScanPreview preview) {
+		this.preview = preview;
+	}
+	
+	/** @return the number of frames in each commit */
+	public MetricsRegistry.Distribution getBatchSizes() {
+		return batchSizes;
+	}
+	
+	/** @return the latency of committed scans for every application that got one */
+	public Collection<ScanLatency> getPackageLatency() {
+		return packageLatency.values();
+	}
+	
+	public String getSeparator() {
+		return separator;
+	}
+	
+	/**
+	 * Makes sure a drain is pending. Safe to call from any thread after a
+	 * frame has been offered to the queue.
+	 */
+	public void schedule() {
+		if(scheduled.compareAndSet(false, true))
+		{
+			if(maxDelay > 0 && queue.size() < maxBatch)
+				handler.postDelayed(this, maxDelay);
+			else
+				handler.post(this);
+		}
+		else if(maxDelay > 0 && queue.size() >= maxBatch && expedited.compareAndSet(false, true))
+		{
+			// The batch is full, no point waiting out the delay
+			handler.removeCallbacks(this);
+			handler.post(this);
+		}
+	}
+	
+	@Override
+	public void run() {
+		// Cleared before draining so a frame offered meanwhile schedules again
+		scheduled.set(false);
+		expedited.set(false);
+		
+		InputConnection ic = service.getCurrentInputConnection();
+		
+		int frames = 0;
+		while(frames < maxBatch && queue.poll(frame))
+		{
+			texts[frames] = frame.text;
+			counters[frames] = frame.counters;
+			firstByteAts[frames] = frame.firstByteAt;
+			completedAts[frames] = frame.completedAt;
+			dequeuedAts[frames] = System.nanoTime();
+			journalPositions[frames++] = frame.journalPosition;
+			frame.clear();
+		}
+		
+		// One commit per frame, as before batching; the batch edit still
+		// shows them to the editor at once
+		int committedFrames = 0;
+		long committedAt = 0;
+		if(frames > 0 && ic != null)
+		{
+			try {
+				ic.beginBatchEdit();
+				try {
+					while(committedFrames < frames)
+					{
+						batch.setLength(0);
+						batch.append(texts[committedFrames]).append(separator);
+						if(!ic.commitText(batch, 1))
+							break;
+						committedFrames++;
+						committedAt = System.nanoTime();
+					}
+				} finally {
+					// Left open the editor would hold back every later update
+					ic.endBatchEdit();
+				}
+				batchSizes.record(frames);
+				Tracer.trace(Tracer.DEBUG, TRACE_COMMIT, frames, committedFrames);
+				if(preview != null)
+					preview.committed();
+			} catch (Exception e) {
+				Log.d(TAG, e.getMessage());
+				e.printStackTrace();
+			}
+		}
+		batch.setLength(0);
+		
+		ScanLatency latency = committedFrames > 0 ? latencyFor(service.getCurrentInputEditorInfo()) : null;
+		for(int i = 0; i < frames; i++)
+		{
+			boolean committed = i < committedFrames;
+			if(committed)
+			{
+				if(counters[i] != null)
+					counters[i].getLatency().record(firstByteAts[i], completedAts[i], dequeuedAts[i], committedAt);
+				if(latency != null)
+					latency.record(firstByteAts[i], completedAts[i], dequeuedAts[i], committedAt);
+			}
+			if(committed && journal != null)
+				journal.mark(journalPositions[i], ScanJournal.DELIVERED);
+			else if(!committed && deferred != null)
+				deferred.add(texts[i], journalPositions[i]);
+			if(counters[i] != null)
+				counters[i].increment(committed ? ScanCounters.COMMITTED : ScanCounters.DEFERRED);
+			texts[i] = null;
+			counters[i] = null;
+		}
+		
+		// More than one batch was waiting, let other main thread work in first
+		if(queue.size() > 0)
+			schedule();
+	}
+	
+	private ScanLatency latencyFor(EditorInfo info) {
+		if(info == null || info.packageName == null)
+			return null;
+		
+		ScanLatency latency = packageLatency.get(info.packageName);
+		if(latency == null)
+		{
+			latency = new ScanLatency(info.packageName);
+			packageLatency.put(info.packageName, latency);
+		}
+		return latency;
+	}
+}
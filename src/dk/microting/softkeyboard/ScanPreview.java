@@ -0,0 +1,141 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import android.inputmethodservice.InputMethodService;
+import android.os.Handler;
+import android.view.inputmethod.InputConnection;
+
+/**
+ * Shows a barcode that is still arriving as composing text. The committed
+ * barcode replaces it in the same commitText, so the field never shows
+ * the partial and the final text side by side.
+ * 
+ * The preview has a buffer of its own; the keyboard's composing text is
+ * only read, and nothing is previewed while the user is composing. When
+ * the user types while a preview shows, the keyboard calls
+ * {@link #interrupted()} first, so the preview is taken down instead of
+ * being mixed into the typed text.
+ * 
+ * Scanner threads hand in the latest partial; only the newest one is
+ * kept and one reused Runnable applies it on the main thread. One scanner
+ * is previewed at a time.
+ */
+public class ScanPreview implements Runnable {
+	
+	private final InputMethodService service;
+	private final Handler handler;
+	private final CharSequence userComposing;
+	
+	private final AtomicReference<String> latest = new AtomicReference<String>();
+	private final AtomicReference<String> owner = new AtomicReference<String>();
+	private final AtomicBoolean posted = new AtomicBoolean(false);
+	
+	// Main thread only
+	private final StringBuilder text = new StringBuilder();
+	private boolean showing = false;
+	
+	/** @param userComposing the keyboard's composing text, never written */
+	public ScanPreview(InputMethodService service, Handler handler, CharSequence userComposing) {
+		this.service = service;
+		this.handler = handler;
+		this.userComposing = userComposing;
+	}
+	
+	/** Any thread: shows {@code partial} as the barcode being read by {@code device}. */
+	public void update(String device, String partial) {
+		String current = owner.get();
+		if(current == null)
+		{
+			if(!owner.compareAndSet(null, device) && !device.equals(owner.get()))
+				return;
+		}
+		else if(!current.equals(device))
+			return;
+		
+		latest.set(partial);
+		if(posted.compareAndSet(false, true))
+			handler.post(this);
+	}
+	
+	/** Any thread: the frame of {@code device} was dropped, remove its preview. */
+	public void withdraw(String device) {
+		if(device.equals(owner.get()))
+			update(device, "");
+	}
+	
+	/** Main thread: commitText has just replaced the composing text. */
+	public void committed() {
+		text.setLength(0);
+		showing = false;
+		owner.set(null);
+	}
+	
+	/**
+	 * Main thread: the user is about to type into the editor. A preview
+	 * showing is removed; the scan still arrives and is committed.
+	 */
+	public void interrupted() {
+		if(!showing)
+			return;
+		text.setLength(0);
+		showing = false;
+		InputConnection ic = service.getCurrentInputConnection();
+		if(ic != null)
+			ic.setComposingText(text, 1);
+	}
+	
+	/** Main thread: the editor went away with whatever was composed. */
+	public void reset() {
+		text.setLength(0);
+		showing = false;
+		latest.set(null);
+		owner.set(null);
+	}
+	
+	@Override
+	public void run() {
+		posted.set(false);
+		String partial = latest.getAndSet(null);
+		if(partial == null)
+			return;
+		
+		InputConnection ic = service.getCurrentInputConnection();
+		if(partial.length() == 0)
+		{
+			if(showing)
+			{
+				text.setLength(0);
+				if(ic != null)
+					ic.setComposingText(text, 1);
+				showing = false;
+			}
+			owner.set(null);
+			return;
+		}
+		
+		// Leave the user's own composing text alone
+		if(ic == null || userComposing.length() > 0)
+			return;
+		
+		text.setLength(0);
+		text.append(partial);
+		ic.setComposingText(text, 1);
+		showing = true;
+	}
+}
@@ -0,0 +1,253 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+import dk.microting.softkeyboard.scanner.BarcodeFramer;
+import dk.microting.softkeyboard.scanner.ScanCounters;
+
+/**
+ * The connection to one scanner, as an explicit state machine that owns
+ * the BluetoothSocket and the reader thread with its frame timer.
+ * 
+ * <pre>
+ * IDLE -> CONNECTING -> CONNECTED -> DRAINING -> CLOSED
+ *              |                        ^
+ *              +------------------------+
+ * </pre>
+ * 
+ * The state is a single atomic, so the reader thread, the delivery thread
+ * and the main thread always agree on it. DRAINING means the link is going away
+ * and the reader is delivering what it already read. CLOSED is final; a
+ * reconnect uses a new link. Every transition is reported to the
+ * listeners on the thread that caused it.
+ */
+public class ScannerLink implements BarcodeCallback {
+	
+	private String TAG = "ScannerLink";
+	
+	public static final int IDLE = 0;
+	public static final int CONNECTING = 1;
+	public static final int CONNECTED = 2;
+	public static final int DRAINING = 3;
+	public static final int CLOSED = 4;
+	
+	private static final String[] STATE_NAMES = { "IDLE", "CONNECTING", "CONNECTED", "DRAINING", "CLOSED" };
+	
+	public interface Listener {
+		void onScan(ScannerLink link, String barcode);
+		
+		/** @param partial the barcode so far, empty to withdraw it */
+		void onScanPreview(ScannerLink link, String partial);
+		
+		void onLinkStateChanged(ScannerLink link, int oldState, int newState);
+	}
+	
+	private final BluetoothDevice device;
+	private final UUID service;
+	private final ScannerPreferences preferences;
+	private final String address;
+	private final ScanCounters counters;
+	
+	private final AtomicInteger state = new AtomicInteger(IDLE);
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	
+	private BluetoothSocket socket;
+	private volatile RfcommTransport transport;
+	private volatile ConnectedThread reader;
+	
+	public ScannerLink(BluetoothDevice device, UUID service, ScannerPreferences preferences) {
+		this(device, service, preferences, null);
+	}
+	
+	/**
+	 * @param counters carried over from the previous link to the same
+	 *        scanner, null to start from zero
+	 */
+	public ScannerLink(BluetoothDevice device, UUID service, ScannerPreferences preferences, ScanCounters counters) {
+		this.device = device;
+		this.service = service;
+		this.preferences = preferences;
+		this.address = device.getAddress();
+		this.counters = counters != null ? counters : new ScanCounters(address);
+	}
+	
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+	
+	public String getAddress() {
+		return address;
+	}
+	
+	public ScanCounters getCounters() {
+		return counters;
+	}
+	
+	public int getState() {
+		return state.get();
+	}
+	
+	public boolean isConnected() {
+		return state.get() == CONNECTED;
+	}
+	
+	public ConnectedThread getReader() {
+		return reader;
+	}
+	
+	public static String stateName(int state) {
+		return STATE_NAMES[state];
+	}
+	
+	/**
+	 * Creates the socket and starts the reader, which connects it.
+	 * 
+	 * @return false if the link was not IDLE or the socket could not be made
+	 */
+	public boolean open() {
+		if(!transition(IDLE, CONNECTING))
+			return false;
+		
+		try {
+			socket = device.createRfcommSocketToServiceRecord(service);
+		} catch (IOException e) {
+			Log.e(TAG, "Could not create socket for " + address, e);
+			transition(CONNECTING, CLOSED);
+			return false;
+		}
+		
+		transport = new RfcommTransport(socket);
+		reader = new ConnectedThread(transport, this, BarcodeFramer.TERMINATORS_DEFAULT, preferences, counters);
+		reader.start();
+		return true;
+	}
+	
+	/**
+	 * Closes the socket, which ends the reader, and waits at most
+	 * {@code joinTimeout} ms for it to deliver what it had read.
+	 * 
+	 * @return true if the reader has finished
+	 */
+	public boolean close(long joinTimeout) {
+		for(;;)
+		{
+			int current = state.get();
+			if(current == CLOSED)
+				return true;
+			if(current == IDLE)
+			{
+				if(transition(IDLE, CLOSED))
+					return true;
+				continue;
+			}
+			if(current == DRAINING || transition(current, DRAINING))
+				break;
+		}
+		
+		ConnectedThread thread = reader;
+		if(thread == null)
+			return true;
+		
+		thread.cancel();
+		if(joinTimeout > 0)
+		{
+			try {
+				thread.join(joinTimeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		if(thread.isAlive())
+		{
+			Log.w(TAG, "Reader for " + address + " still draining after " + joinTimeout + " ms");
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Ends a link the system reports as dropped while its reader may still
+	 * block in read(). The reader fails, which sends the link into reconnect.
+	 */
+	public void linkLost() {
+		RfcommTransport current = transport;
+		ConnectedThread thread = reader;
+		if(current == null || thread == null)
+			return;
+		
+		current.linkLost();
+		thread.getReader().abort(new IOException("Link lost"));
+	}
+	
+	@Override
+	public void barcodeCallBack(String barcode, String address) {
+		counters.increment(ScanCounters.RECEIVED);
+		for(Listener listener : listeners)
+			listener.onScan(this, barcode);
+	}
+	
+	@Override
+	public void barcodePartial(String partial, String address) {
+		for(Listener listener : listeners)
+			listener.onScanPreview(this, partial);
+	}
+	
+	@Override
+	public void barcodeScannerConnect() {
+		// Fails if close() got in first, the reader will see its socket closed
+		if(transition(CONNECTING, CONNECTED))
+			counters.increment(ScanCounters.CONNECTS);
+	}
+	
+	@Override
+	public void barcodeScannerDisconnect() {
+		for(;;)
+		{
+			int current = state.get();
+			if(current == CLOSED)
+				return;
+			if(current == DRAINING)
+			{
+				if(transition(DRAINING, CLOSED))
+					return;
+				continue;
+			}
+			// The link dropped on its own, pass through DRAINING so listeners
+			// always see the same sequence
+			if(transition(current, DRAINING))
+				transition(DRAINING, CLOSED);
+			return;
+		}
+	}
+	
+	private boolean transition(int from, int to) {
+		if(!state.compareAndSet(from, to))
+			return false;
+		
+		Log.d(TAG, address + " " + STATE_NAMES[from] + " -> " + STATE_NAMES[to]);
+		for(Listener listener : listeners)
+			listener.onLinkStateChanged(this, from, to);
+		return true;
+	}
+}
@@ -0,0 +1,208 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.nio.charset.Charset;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+import dk.microting.softkeyboard.scanner.BarcodeValidator;
+import dk.microting.softkeyboard.scanner.TransformPipeline;
+
+/**
+ * Per scanner settings, keyed by the Bluetooth address: the learned
+ * end-of-frame timeout, so a reconnect starts from the last known cadence,
+ * the charset the scanner sends its labels in, how its barcodes are
+ * validated, the transforms applied to them and when the watchdog gives
+ * up on a silent link. Settings that apply to
+ * all scanners, like the duplicate window and which devices are scanners,
+ * and the per application replay policy for deferred scans are stored
+ * here as well.
+ * 
+ * The app itself only writes the learned timeout and the matched
+ * scanners. There is no settings screen yet, so every other setting is
+ * read with its default unless the preferences were written from outside.
+ */
+public class ScannerPreferences {
+	
+	private String TAG = "ScannerPreferences";
+	
+	private static final String PREFERENCES = "scanners";
+	private static final String FRAME_TIMEOUT = "frame_timeout_";
+	private static final String CHARSET = "charset_";
+	private static final String TRANSFORM = "transform_";
+	private static final String VALIDATION = "validation_";
+	private static final String SILENCE_LIMIT = "silence_limit_";
+	private static final String HEARTBEAT = "heartbeat_";
+	private static final String HEARTBEAT_INTERVAL = "heartbeat_interval_";
+	private static final String PREVIEW = "preview_";
+	private static final String DUPLICATE_WINDOW = "duplicate_window";
+	private static final String SCAN_SEPARATOR = "scan_separator";
+	private static final String REPLAY = "replay_";
+	private static final String SCANNER_RULES = "scanner_rules";
+	private static final String SCANNER_ADDRESSES = "scanner_addresses";
+	
+	private final SharedPreferences preferences;
+	
+	public ScannerPreferences(Context context) {
+		this.preferences = context.getSharedPreferences(context.getPackageName() + "_" + PREFERENCES, Context.MODE_PRIVATE);
+	}
+	
+	public long getFrameTimeout(String address, long defaultTimeout) {
+		if(address == null)
+			return defaultTimeout;
+		return preferences.getLong(FRAME_TIMEOUT + address, defaultTimeout);
+	}
+	
+	public void setFrameTimeout(String address, long timeout) {
+		if(address == null)
+			return;
+		preferences.edit().putLong(FRAME_TIMEOUT + address, timeout).commit();
+	}
+	
+	public Charset getCharset(String address, Charset defaultCharset) {
+		if(address == null)
+			return defaultCharset;
+		
+		String name = preferences.getString(CHARSET + address, null);
+		if(name == null)
+			return defaultCharset;
+		
+		try {
+			return Charset.forName(name);
+		} catch (Exception e) {
+			Log.e(TAG, "Unsupported charset " + name + " for " + address, e);
+			return defaultCharset;
+		}
+	}
+	
+	/**
+	 * @return the pipeline built from the stored spec, see
+	 *         {@link TransformPipeline#parse(String)}
+	 */
+	public TransformPipeline getTransform(String address, TransformPipeline defaultTransform) {
+		if(address == null)
+			return defaultTransform;
+		
+		String spec = preferences.getString(TRANSFORM + address, null);
+		if(spec == null)
+			return defaultTransform;
+		
+		try {
+			return TransformPipeline.parse(spec);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Invalid transform for " + address, e);
+			return defaultTransform;
+		}
+	}
+	
+	public BarcodeValidator.Policy getValidation(String address, BarcodeValidator.Policy defaultPolicy) {
+		if(address == null)
+			return defaultPolicy;
+		
+		String name = preferences.getString(VALIDATION + address, null);
+		if(name == null)
+			return defaultPolicy;
+		
+		try {
+			return BarcodeValidator.Policy.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unknown validation policy " + name + " for " + address, e);
+			return defaultPolicy;
+		}
+	}
+	
+	/** @return ms of silence after which the watchdog ends the link, 0 for never */
+	public long getSilenceLimit(String address, long defaultLimit) {
+		if(address == null)
+			return defaultLimit;
+		return preferences.getLong(SILENCE_LIMIT + address, defaultLimit);
+	}
+	
+	/** @return the heartbeat frame the scanner is configured to send, or the default */
+	public String getHeartbeat(String address, String defaultHeartbeat) {
+		if(address == null)
+			return defaultHeartbeat;
+		return preferences.getString(HEARTBEAT + address, defaultHeartbeat);
+	}
+	
+	/** @return ms between the scanner's heartbeats, 0 if it sends none */
+	public long getHeartbeatInterval(String address, long defaultInterval) {
+		if(address == null)
+			return defaultInterval;
+		return preferences.getLong(HEARTBEAT_INTERVAL + address, defaultInterval);
+	}
+	
+	/** @return true to show barcodes as composing text while they arrive */
+	public boolean getPreview(String address, boolean defaultPreview) {
+		if(address == null)
+			return defaultPreview;
+		return preferences.getBoolean(PREVIEW + address, defaultPreview);
+	}
+	
+	/** @return ms within which the same barcode is suppressed, 0 for off */
+	public long getDuplicateWindow(long defaultWindow) {
+		return preferences.getLong(DUPLICATE_WINDOW, defaultWindow);
+	}
+	
+	/** @return what is written after every committed scan, e.g. "\n" */
+	public String getScanSeparator(String defaultSeparator) {
+		return preferences.getString(SCAN_SEPARATOR, defaultSeparator);
+	}
+	
+	/** @return what to do with deferred scans when this application gets focus */
+	public DeferredScans.Policy getReplayPolicy(String packageName, DeferredScans.Policy defaultPolicy) {
+		if(packageName == null)
+			return defaultPolicy;
+		
+		String name = preferences.getString(REPLAY + packageName, null);
+		if(name == null)
+			return defaultPolicy;
+		
+		try {
+			return DeferredScans.Policy.valueOf(name);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Unknown replay policy " + name + " for " + packageName, e);
+			return defaultPolicy;
+		}
+	}
+	
+	/** @return the rules for {@link ScannerRegistry}, one per line */
+	public String getScannerRules(String defaultRules) {
+		return preferences.getString(SCANNER_RULES, defaultRules);
+	}
+	
+	/** @return the addresses matched by the registry, null if never matched */
+	public String[] getScannerAddresses() {
+		String list = preferences.getString(SCANNER_ADDRESSES, null);
+		if(list == null)
+			return null;
+		if(list.length() == 0)
+			return new String[0];
+		return list.split(",");
+	}
+	
+	public void setScannerAddresses(String[] addresses) {
+		StringBuilder list = new StringBuilder();
+		for(String address : addresses)
+		{
+			if(list.length() > 0)
+				list.append(',');
+			list.append(address);
+		}
+		preferences.edit().putString(SCANNER_ADDRESSES, list.toString()).commit();
+	}
+}
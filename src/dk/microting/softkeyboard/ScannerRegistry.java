@@ -0,0 +1,338 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothClass;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.util.Log;
+
+/**
+ * The bonded devices that are scanners, matched once and cached by address.
+ * 
+ * A device is a scanner if any of the rules matches it. Rules are given one
+ * per line:
+ * 
+ * <pre>
+ * name cs30        name starts with, ignoring case
+ * mac 00:1B:8C     address starts with, ignoring case
+ * class 0x0540     Bluetooth device class, or major class, equals
+ * </pre>
+ * 
+ * The matched addresses are stored in {@link ScannerPreferences}, so
+ * connecting never enumerates the bonded devices. The list only changes on
+ * a bond state broadcast, or is rebuilt if there is none stored and when
+ * the adapter is turned on. An empty
+ * match is never stored, as the adapter reports no bonded devices while
+ * it is still turning on.
+ * 
+ * The registry also passes on when the link to a scanner drops, as a
+ * scanner walking out of range does not always make its socket fail.
+ */
+public class ScannerRegistry extends BroadcastReceiver {
+	
+	private String TAG = "ScannerRegistry";
+	
+	/** Matches the Motorola CS3070 and the rest of its series. */
+	public static final String DEFAULT_RULES = "name cs30";
+	
+	public interface Listener {
+		/** A scanner was bonded or removed. */
+		void onScannersChanged();
+		
+		/** The system lost the link to a scanner, its socket may not know yet. */
+		void onScannerDisconnected(String address);
+	}
+	
+	private static final String[] NONE = new String[0];
+	
+	private static final int NAME = 0;
+	private static final int MAC = 1;
+	private static final int CLASS = 2;
+	
+	private final Context context;
+	private final BluetoothAdapter adapter;
+	private final ScannerPreferences preferences;
+	private final Listener listener;
+	
+	private int[] ruleTypes;
+	private String[] rulePrefixes;
+	private int[] ruleClasses;
+	
+	// Replaced, never modified, so readers need no lock
+	private volatile String[] addresses = NONE;
+	private boolean registered = false;
+	
+	/** @param listener called on the main thread, may be null */
+	public ScannerRegistry(Context context, BluetoothAdapter adapter, ScannerPreferences preferences, Listener listener) {
+		this.context = context;
+		this.adapter = adapter;
+		this.preferences = preferences;
+		this.listener = listener;
+		parseRules(preferences.getScannerRules(DEFAULT_RULES));
+	}
+	
+	/**
+	 * Loads the cached addresses, enumerating the bonded devices only if
+	 * none are stored, and starts listening for bond and adapter state
+	 * changes and for dropped links.
+	 */
+	public void register() {
+		if(registered)
+			return;
+		
+		String[] cached = preferences.getScannerAddresses();
+		if(cached == null || cached.length == 0)
+			refresh();
+		else
+			addresses = cached;
+		
+		IntentFilter filter = new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
+		filter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+		filter.addAction(BluetoothDevice.ACTION_ACL_DISCONNECTED);
+		context.registerReceiver(this, filter);
+		registered = true;
+		Log.d(TAG, addresses.length + " scanner(s) registered");
+	}
+	
+	public void unregister() {
+		if(!registered)
+			return;
+		
+		context.unregisterReceiver(this);
+		registered = false;
+	}
+	
+	/** @return the scanner addresses, in the order they were bonded */
+	public String[] getAddresses() {
+		return addresses;
+	}
+	
+	public boolean contains(String address) {
+		return indexOf(addresses, address) >= 0;
+	}
+	
+	/** @return the device for a cached address, without enumerating */
+	public BluetoothDevice getDevice(String address) {
+		return adapter.getRemoteDevice(address);
+	}
+	
+	/**
+	 * Rebuilds the list from the bonded devices and stores it, unless no
+	 * scanner is bonded, or none is visible yet.
+	 * 
+	 * @return true if the list changed
+	 */
+	public boolean refresh() {
+		List<String> found = new ArrayList<String>();
+		Set<BluetoothDevice> bonded = adapter.getBondedDevices();
+		if(bonded != null)
+		{
+			for(BluetoothDevice device : bonded)
+			{
+				if(matches(device))
+					found.add(device.getAddress());
+			}
+		}
+		
+		if(found.isEmpty())
+		{
+			Log.d(TAG, "No bonded scanner found, keeping " + addresses.length);
+			return false;
+		}
+		
+		String[] next = found.toArray(new String[found.size()]);
+		if(Arrays.equals(next, addresses))
+			return false;
+		
+		setAddresses(next);
+		return true;
+	}
+	
+	public boolean matches(BluetoothDevice device) {
+		for(int i = 0; i < ruleTypes.length; i++)
+		{
+			switch(ruleTypes[i])
+			{
+			case NAME:
+				String name = device.getName();
+				if(name != null && name.toLowerCase(Locale.US).startsWith(rulePrefixes[i]))
+					return true;
+				break;
+			case MAC:
+				String address = device.getAddress();
+				if(address != null && address.toUpperCase(Locale.US).startsWith(rulePrefixes[i]))
+					return true;
+				break;
+			case CLASS:
+				BluetoothClass bluetoothClass = device.getBluetoothClass();
+				if(bluetoothClass != null && (bluetoothClass.getDeviceClass() == ruleClasses[i]
+						|| bluetoothClass.getMajorDeviceClass() == ruleClasses[i]))
+					return true;
+				break;
+			}
+		}
+		return false;
+	}
+	
+	@Override
+	public void onReceive(Context context, Intent intent) {
+		if(BluetoothAdapter.ACTION_STATE_CHANGED.equals(intent.getAction()))
+		{
+			// Bonds made while the process was dead show up only now
+			int state = intent.getIntExtra(BluetoothAdapter.EXTRA_STATE, BluetoothAdapter.STATE_OFF);
+			if(state == BluetoothAdapter.STATE_ON && refresh() && listener != null)
+				listener.onScannersChanged();
+			return;
+		}
+		
+		BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+		if(device == null)
+			return;
+		
+		if(BluetoothDevice.ACTION_ACL_DISCONNECTED.equals(intent.getAction()))
+		{
+			if(contains(device.getAddress()) && listener != null)
+			{
+				Log.d(TAG, "Scanner link lost: " + device.getAddress());
+				listener.onScannerDisconnected(device.getAddress());
+			}
+			return;
+		}
+		if(!BluetoothDevice.ACTION_BOND_STATE_CHANGED.equals(intent.getAction()))
+			return;
+		
+		int bondState = intent.getIntExtra(BluetoothDevice.EXTRA_BOND_STATE, BluetoothDevice.BOND_NONE);
+		String address = device.getAddress();
+		String[] current = addresses;
+		int index = indexOf(current, address);
+		
+		if(bondState == BluetoothDevice.BOND_BONDED && index < 0 && matches(device))
+		{
+			String[] next = new String[current.length + 1];
+			System.arraycopy(current, 0, next, 0, current.length);
+			next[current.length] = address;
+			Log.d(TAG, "Scanner bonded: " + address);
+			setAddresses(next);
+		}
+		else if(bondState == BluetoothDevice.BOND_NONE && index >= 0)
+		{
+			String[] next = new String[current.length - 1];
+			System.arraycopy(current, 0, next, 0, index);
+			System.arraycopy(current, index + 1, next, index, next.length - index);
+			Log.d(TAG, "Scanner unbonded: " + address);
+			setAddresses(next);
+		}
+		else
+			return;
+		
+		if(listener != null)
+			listener.onScannersChanged();
+	}
+	
+	private void setAddresses(String[] next) {
+		addresses = next;
+		preferences.setScannerAddresses(next);
+	}
+	
+	private static int indexOf(String[] addresses, String address) {
+		for(int i = 0; i < addresses.length; i++)
+		{
+			if(addresses[i].equalsIgnoreCase(address))
+				return i;
+		}
+		return -1;
+	}
+	
+	private void parseRules(String spec) {
+		RuleParser parser;
+		try {
+			parser = new RuleParser(spec);
+		} catch (IllegalArgumentException e) {
+			Log.e(TAG, "Invalid scanner rules, using the default", e);
+			parser = new RuleParser(DEFAULT_RULES);
+		}
+		ruleTypes = parser.types;
+		rulePrefixes = parser.prefixes;
+		ruleClasses = parser.classes;
+	}
+	
+	private static class RuleParser {
+		final int[] types;
+		final String[] prefixes;
+		final int[] classes;
+		
+		RuleParser(String spec) {
+			String[] lines = spec.split("\n");
+			int[] types = new int[lines.length];
+			String[] prefixes = new String[lines.length];
+			int[] classes = new int[lines.length];
+			int count = 0;
+			
+			for(String line : lines)
+			{
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+					continue;
+				
+				int space = line.indexOf(' ');
+				if(space < 0)
+					throw new IllegalArgumentException("Rule without a value: " + line);
+				String kind = line.substring(0, space);
+				String value = line.substring(space + 1).trim();
+				
+				if(kind.equals("name"))
+				{
+					types[count] = NAME;
+					prefixes[count] = value.toLowerCase(Locale.US);
+				}
+				else if(kind.equals("mac"))
+				{
+					types[count] = MAC;
+					prefixes[count] = value.toUpperCase(Locale.US);
+				}
+				else if(kind.equals("class"))
+				{
+					types[count] = CLASS;
+					try {
+						classes[count] = Integer.decode(value);
+					} catch (NumberFormatException e) {
+						throw new IllegalArgumentException("Invalid device class: " + value);
+					}
+				}
+				else
+					throw new IllegalArgumentException("Unknown rule: " + kind);
+				count++;
+			}
+			
+			this.types = new int[count];
+			this.prefixes = new String[count];
+			this.classes = new int[count];
+			System.arraycopy(types, 0, this.types, 0, count);
+			System.arraycopy(prefixes, 0, this.prefixes, 0, count);
+			System.arraycopy(classes, 0, this.classes, 0, count);
+		}
+	}
+}
@@ -17,12 +17,12 @@ package dk.microting.softkeyboard;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.inputmethodservice.InputMethodService;
 import android.inputmethodservice.Keyboard;
 import android.inputmethodservice.Keyboard.Key;
 import android.inputmethodservice.KeyboardView;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.method.MetaKeyKeyListener;
 import android.util.Log;
 import android.view.KeyCharacterMap;
@@ -31,13 +31,32 @@ import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.InputConnection;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 
 import dk.microting.softkeyboard.R;
 import dk.microting.softkeyboard.autoupdateapk.AutoUpdateApk;
+import dk.microting.softkeyboard.scanner.BarcodeValidator;
+import dk.microting.softkeyboard.scanner.DuplicateFilter;
+import dk.microting.softkeyboard.scanner.FrameQueue;
+import dk.microting.softkeyboard.scanner.FrameReader;
+import dk.microting.softkeyboard.scanner.MetricsRegistry;
+import dk.microting.softkeyboard.scanner.MetricsSnapshotter;
+import dk.microting.softkeyboard.scanner.ReaderWatchdog;
+import dk.microting.softkeyboard.scanner.ScanCounters;
+import dk.microting.softkeyboard.scanner.ScanFrame;
+import dk.microting.softkeyboard.scanner.ScanJournal;
+import dk.microting.softkeyboard.scanner.ScanLatency;
+import dk.microting.softkeyboard.scanner.TimerWheel;
+import dk.microting.softkeyboard.scanner.Tracer;
 
 /**
  * Example of writing an input method for a soft keyboard.  This code is
@@ -46,7 +65,7 @@ import dk.microting.softkeyboard.autoupdateapk.AutoUpdateApk;
  * a basic example for how you would get started writing an input method, to
  * be fleshed out as appropriate.
  */
-public class SoftKeyboard extends InputMethodService implements KeyboardView.OnKeyboardActionListener, BarcodeCallback {
+public class SoftKeyboard extends InputMethodService implements KeyboardView.OnKeyboardActionListener, ScannerLink.Listener {
     /**
      * This boolean indicates the optional example code for performing
      * processing of hard keys in addition to regular text generation
@@ -77,20 +96,76 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     private String mWordSeparators;
     
 	private BluetoothAdapter btAdapter;
-	private Set<BluetoothDevice> pairedDevices;
+	private ScannerRegistry scannerRegistry;
 	
-	private boolean scannerConnected = false;
-	private BluetoothSocket scanner;
-	private ConnectedThread scannerThread;
+	// One link and scheduler per registered scanner, changed on the main
+	// thread only; the links and counters are also read by dump()
+	private final Map<String, ScannerLink> scannerLinks = new ConcurrentHashMap<String, ScannerLink>();
+	private final Map<String, ReconnectScheduler> reconnectSchedulers = new HashMap<String, ReconnectScheduler>();
+	// Outlive the links, so a reconnect keeps counting
+	private final Map<String, ScanCounters> scanCounters = new ConcurrentHashMap<String, ScanCounters>();
+	private MetricsRegistry metrics;
+	private MetricsSnapshotter metricsSnapshotter;
 	private Key scannerKey;
 	private Handler handler;
+	private ScannerPreferences scannerPreferences;
+	
+	// Every scanner thread offers, serialized on the queue, the main thread
+	// polls. Each scanner's frames keep their order; frames two scanners
+	// complete at once may reach the journal and the queue in different
+	// orders, deferred scans follow the queue
+	private final FrameQueue scanQueue = new FrameQueue();
+	private final ScanFrame producedScan = new ScanFrame();
+	private ScanCommitter scanCommitter;
+	private ScanPreview scanPreview;
+	// Keyed by scanner and outlives the links, so codes re-sent after a
+	// reconnect are caught
+	private DuplicateFilter duplicates;
+	private ScanJournal journal;
+	private DeferredScans deferredScans;
+	private boolean replayPromptShown = false;
 	
 	private static final UUID MY_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"); //UUID for generic SPP connections
 	
+	// How long onDestroy waits for the reader to deliver what it has read
+	private static final long LINK_JOIN_TIMEOUT = 500;
+	
 	private AutoUpdateApk aua;
     
     private String TAG = "SoftKeyboard";
     
+	// Key handling runs on every press, so it is traced rather than logged
+	private static final int TRACE_TRANSLATE_KEY_DOWN = Tracer.event("translateKeyDown");
+	private static final int TRACE_ON_KEY_DOWN = Tracer.event("onKeyDown");
+	private static final int TRACE_ON_KEY_UP = Tracer.event("onKeyUp");
+	private static final int TRACE_COMMIT_TYPED = Tracer.event("commitTyped");
+	private static final int TRACE_UPDATE_SHIFT_KEY_STATE = Tracer.event("updateShiftKeyState");
+	private static final int TRACE_KEY_DOWN_UP = Tracer.event("keyDownUp");
+	private static final int TRACE_SEND_KEY = Tracer.event("sendKey");
+	private static final int TRACE_ON_KEY = Tracer.event("onKey");
+	private static final int TRACE_ON_TEXT = Tracer.event("onText");
+	private static final int TRACE_UPDATE_CANDIDATES = Tracer.event("updateCandidates");
+	private static final int TRACE_SET_SUGGESTIONS = Tracer.event("setSuggestions");
+	private static final int TRACE_HANDLE_BACKSPACE = Tracer.event("handleBackspace");
+	private static final int TRACE_HANDLE_SHIFT = Tracer.event("handleShift");
+	private static final int TRACE_HANDLE_CHARACTER = Tracer.event("handleCharacter");
+	private static final int TRACE_CHECK_TOGGLE_CAPS_LOCK = Tracer.event("checkToggleCapsLock");
+	private static final int TRACE_GET_WORD_SEPARATORS = Tracer.event("getWordSeparators");
+	private static final int TRACE_IS_WORD_SEPARATOR = Tracer.event("isWordSeparator");
+	private static final int TRACE_PICK_DEFAULT_CANDIDATE = Tracer.event("pickDefaultCandidate");
+	private static final int TRACE_PICK_SUGGESTION_MANUALLY = Tracer.event("pickSuggestionManually");
+	private static final int TRACE_SWIPE_RIGHT = Tracer.event("swipeRight");
+	private static final int TRACE_SWIPE_LEFT = Tracer.event("swipeLeft");
+	private static final int TRACE_SWIPE_DOWN = Tracer.event("swipeDown");
+	private static final int TRACE_SWIPE_UP = Tracer.event("swipeUp");
+	private static final int TRACE_ON_PRESS = Tracer.event("onPress");
+	private static final int TRACE_ON_RELEASE = Tracer.event("onRelease");
+	private static final int TRACE_DUPLICATE_SCAN = Tracer.event("duplicateScan");
+	private static final int TRACE_HANDLE_CLOSE = Tracer.event("handleClose");
+	private static final int TRACE_SCANNER_KEY = Tracer.event("scannerKey");
+	private static final int TRACE_CONNECT_TO_SCANNER = Tracer.event("connectToScanner");
+	private static final int TRACE_SET_SCANNER_ICON = Tracer.event("setScannerIcon");
+    
     /**
      * Main initialization of the input method component.  Be sure to call
      * to super class.
@@ -100,20 +175,40 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     	Log.d(TAG, "onCreate");
         super.onCreate();
         handler = new Handler();
+        scannerPreferences = new ScannerPreferences(this);
+        // Only remembers the directory, the segments are opened on the first scan
+        journal = new ScanJournal(new File(getFilesDir(), "journal"));
+        deferredScans = new DeferredScans(journal, handler);
+        scanCommitter = new ScanCommitter(this, handler, scanQueue, journal, deferredScans,
+        		ScanCommitter.DEFAULT_MAX_BATCH, ScanCommitter.DEFAULT_MAX_DELAY, scannerPreferences.getScanSeparator(""));
+        scanPreview = new ScanPreview(this, handler, mComposing);
+        scanCommitter.setPreview(scanPreview);
+        registerMetrics();
+        metricsSnapshotter = new MetricsSnapshotter(metrics, new File(getFilesDir(), "metrics.bin"), TimerWheel.shared());
+        metricsSnapshotter.start();
+        Tracer.installCrashDump(new File(getFilesDir(), "trace.txt"));
+        duplicates = new DuplicateFilter(DuplicateFilter.DEFAULT_CAPACITY, scannerPreferences.getDuplicateWindow(DuplicateFilter.DEFAULT_WINDOW));
         mWordSeparators = getResources().getString(R.string.word_separators);
         
         this.btAdapter = BluetoothAdapter.getDefaultAdapter();
         if(!btAdapter.isEnabled())
         	btAdapter.enable();
         
-        pairedDevices = btAdapter.getBondedDevices();
-        
-        try {
-			connectToScanner();
-		} catch (Exception e) {
-			Log.d(TAG, e.getMessage());
-			e.printStackTrace();
-		}
+        scannerRegistry = new ScannerRegistry(this, btAdapter, scannerPreferences, new ScannerRegistry.Listener() {
+			@Override
+			public void onScannersChanged() {
+				updateScanners();
+			}
+			
+			@Override
+			public void onScannerDisconnected(String address) {
+				ScannerLink link = scannerLinks.get(address);
+				if(link != null)
+					link.linkLost();
+			}
+		});
+        scannerRegistry.register();
+        updateScanners();
 		
 		this.aua = new AutoUpdateApk(this);
 		this.aua.checkUpdatesManually();
@@ -182,6 +277,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
         // Reset our state.  We want to do this even if restarting, because
         // the underlying state of the text editor could have changed in any way.
         mComposing.setLength(0);
+        scanPreview.reset();
         updateCandidates();
         
         if (!restarting) {
@@ -236,6 +332,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
         
         // Clear current composing text and candidates.
         mComposing.setLength(0);
+        scanPreview.reset();
         updateCandidates();
         
         // We only hide the candidates window when finishing input on
@@ -243,6 +340,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
         // up and down if the user is entering text into the bottom of
         // its window.
         setCandidatesViewShown(false);
+        replayPromptShown = false;
         
         mCurKeyboard = mQwertyKeyboard;
         if (mInputView != null) {
@@ -257,13 +355,9 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
         // Apply the selected keyboard to the input view.
         mInputView.setKeyboard(mCurKeyboard);
         mInputView.closing();
-        try {
-			connectToScanner();
-		} catch (Exception e) {
-			Log.d(TAG, e.getMessage());
-			e.printStackTrace();
-			Log.d(TAG, "Failed to connect to scanner");
-		}
+        deliverDeferredScans();
+        // The scheduler owns the link, focus only refreshes the icon
+        setScannerIcon(isScannerConnected());
     }
 
     /**
@@ -272,7 +366,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      * PROCESS_HARD_KEYS option.
      */
     private boolean translateKeyDown(int keyCode, KeyEvent event) {
-    	Log.d(TAG, "translateKeyDown");
+    	Tracer.trace(Tracer.DEBUG, TRACE_TRANSLATE_KEY_DOWN, keyCode, 0);
         mMetaState = MetaKeyKeyListener.handleKeyDown(mMetaState,
                 keyCode, event);
         int c = event.getUnicodeChar(MetaKeyKeyListener.getMetaState(mMetaState));
@@ -308,7 +402,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      */
     @Override
     public boolean onKeyDown(int keyCode, KeyEvent event) {
-    	Log.d(TAG, "onKeyDown");
+    	Tracer.trace(Tracer.DEBUG, TRACE_ON_KEY_DOWN, keyCode, 0);
         switch (keyCode) {
             case KeyEvent.KEYCODE_BACK:
                 // The InputMethodService already takes care of the back
@@ -377,7 +471,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      */
     @Override
     public boolean onKeyUp(int keyCode, KeyEvent event) {
-    	Log.d(TAG, "onKeyUp");
+    	Tracer.trace(Tracer.DEBUG, TRACE_ON_KEY_UP, keyCode, 0);
         // If we want to do transformations on text being entered with a hard
         // keyboard, we need to process the up events to update the meta key
         // state we are tracking.
@@ -395,7 +489,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      * Helper function to commit any text being composed in to the editor.
      */
     private void commitTyped(InputConnection inputConnection) {
-    	Log.d(TAG, "commitTyped");
+    	Tracer.trace(Tracer.DEBUG, TRACE_COMMIT_TYPED);
         if (mComposing.length() > 0) {
             inputConnection.commitText(mComposing, mComposing.length());
             mComposing.setLength(0);
@@ -408,7 +502,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      * editor state.
      */
     private void updateShiftKeyState(EditorInfo attr) {
-    	Log.d(TAG, "updateShiftKeyState");
+    	Tracer.trace(Tracer.DEBUG, TRACE_UPDATE_SHIFT_KEY_STATE);
         if (attr != null 
                 && mInputView != null && mQwertyKeyboard == mInputView.getKeyboard()) {
             int caps = 0;
@@ -424,7 +518,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      * Helper to send a key down / key up pair to the current editor.
      */
     private void keyDownUp(int keyEventCode) {
-    	Log.d(TAG, "keyDownUp");
+    	Tracer.trace(Tracer.DEBUG, TRACE_KEY_DOWN_UP, keyEventCode, 0);
     	
     	InputConnection ic = getCurrentInputConnection();
 		if(ic == null)
@@ -440,11 +534,10 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      * Helper to send a character to the editor as raw key events.
      */
     private void sendKey(int keyCode) {
-    	Log.d(TAG, "sendKey");
+    	Tracer.trace(Tracer.DEBUG, TRACE_SEND_KEY, keyCode, 0);
         switch (keyCode) {
             case '\n':
                 keyDownUp(KeyEvent.KEYCODE_ENTER);
-                Log.d(TAG, "Sending enter key");
                 break;
             default:
                 if (keyCode >= '0' && keyCode <= '9') {
@@ -462,7 +555,8 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
 
     // Implementation of KeyboardViewListener
     public void onKey(int primaryCode, int[] keyCodes) {
-    	Log.d(TAG, "onKey primaryCode " + primaryCode);
+    	Tracer.trace(Tracer.DEBUG, TRACE_ON_KEY, primaryCode, 0);
+    	scanPreview.interrupted();
         if (isWordSeparator(primaryCode)) {
             // Handle separator
             if (mComposing.length() > 0) {
@@ -496,28 +590,28 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
             if (current == mSymbolsKeyboard) {
                 current.setShifted(false);
             }
-        } else if(primaryCode == 0 && !scannerConnected) { 
-        	Log.d(TAG, "Checking connection to the scanner!");
-        	if(!checkConnection())
-        	{
-        		Log.d(TAG, "No connection the scanner!");
-	        	try {
-					connectToScanner();
-				} catch (Exception e) {
-					Log.d(TAG, e.getMessage());
-					e.printStackTrace();
-				}
-        	}
-        } else if(primaryCode == 0 && scannerConnected) {
-        	Log.d(TAG, "Disconnecting the scanner!");
-        	scannerThread.cancel();
+        } else if(primaryCode == 0 && !isScannerConnected()) { 
+        	// 0 connects, 1 disconnects
+        	Tracer.trace(Tracer.DEBUG, TRACE_SCANNER_KEY, 0, 0);
+        	// The adapter may have been off when the scanners were matched
+        	if(reconnectSchedulers.isEmpty() && scannerRegistry.refresh())
+        		updateScanners();
+        	for(ReconnectScheduler scheduler : reconnectSchedulers.values())
+        		scheduler.trigger();
+        } else if(primaryCode == 0 && isScannerConnected()) {
+        	Tracer.trace(Tracer.DEBUG, TRACE_SCANNER_KEY, 1, 0);
+        	for(ReconnectScheduler scheduler : reconnectSchedulers.values())
+        		scheduler.stop();
+        	for(ScannerLink link : scannerLinks.values())
+        		link.close(0);
         }else {
             handleCharacter(primaryCode, keyCodes);
         }
     }
 
     public void onText(CharSequence text) {
-    	Log.d(TAG, "onText");
+    	Tracer.trace(Tracer.DEBUG, TRACE_ON_TEXT);
+    	scanPreview.interrupted();
         InputConnection ic = getCurrentInputConnection();
         if (ic == null) return;
         ic.beginBatchEdit();
@@ -535,7 +629,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
      * candidates.
      */
     private void updateCandidates() {
-    	Log.d(TAG, "updateCandidates");
+    	Tracer.trace(Tracer.DEBUG, TRACE_UPDATE_CANDIDATES);
         if (!mCompletionOn) {
             if (mComposing.length() > 0) {
                 ArrayList<String> list = new ArrayList<String>();
@@ -548,11 +642,11 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     }
     
     public void setSuggestions(List<String> suggestions, boolean completions, boolean typedWordValid) {
-    	Log.d(TAG, "setSuggestions");
+    	Tracer.trace(Tracer.DEBUG, TRACE_SET_SUGGESTIONS);
     }
     
     private void handleBackspace() {
-    	Log.d(TAG, "handleBackspace");
+    	Tracer.trace(Tracer.DEBUG, TRACE_HANDLE_BACKSPACE);
         final int length = mComposing.length();
         
         InputConnection ic = getCurrentInputConnection();
@@ -575,7 +669,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     }
 
     private void handleShift() {
-    	Log.d(TAG, "handleShift");
+    	Tracer.trace(Tracer.DEBUG, TRACE_HANDLE_SHIFT);
         if (mInputView == null) {
             return;
         }
@@ -597,7 +691,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     }
     
     private void handleCharacter(int primaryCode, int[] keyCodes) {
-    	Log.d(TAG, "handleCharacter");
+    	Tracer.trace(Tracer.DEBUG, TRACE_HANDLE_CHARACTER, primaryCode, 0);
     	
     	InputConnection ic = getCurrentInputConnection();
 		if(ic == null)
@@ -616,7 +710,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     }
 
     private void handleClose() {
-    	Log.d(TAG, "handleClose");
+    	Tracer.trace(Tracer.DEBUG, TRACE_HANDLE_CLOSE);
     	
     	InputConnection ic = getCurrentInputConnection();
 		if(ic == null)
@@ -628,7 +722,7 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     }
 
     private void checkToggleCapsLock() {
-    	Log.d(TAG, "checkToggleCapsLock");
+    	Tracer.trace(Tracer.DEBUG, TRACE_CHECK_TOGGLE_CAPS_LOCK);
         long now = System.currentTimeMillis();
         if (mLastShiftTime + 800 > now) {
             mCapsLock = !mCapsLock;
@@ -639,180 +733,451 @@ public class SoftKeyboard extends InputMethodService implements KeyboardView.OnK
     }
     
     private String getWordSeparators() {
-    	Log.d(TAG, "getWordSeparators");
+    	Tracer.trace(Tracer.DEBUG, TRACE_GET_WORD_SEPARATORS);
         return mWordSeparators;
     }
     
     public boolean isWordSeparator(int code) {
-    	Log.d(TAG, "isWordSeparator");
+    	Tracer.trace(Tracer.DEBUG, TRACE_IS_WORD_SEPARATOR, code, 0);
         String separators = getWordSeparators();
         return separators.contains(String.valueOf((char)code));
     }
 
     public void pickDefaultCandidate() {
-    	Log.d(TAG, "pickDefaultCandidate");
+    	Tracer.trace(Tracer.DEBUG, TRACE_PICK_DEFAULT_CANDIDATE);
         pickSuggestionManually(0);
     }
     
     public void pickSuggestionManually(int index) {
-    	Log.d(TAG, "pickSuggestionManually");
+    	Tracer.trace(Tracer.DEBUG, TRACE_PICK_SUGGESTION_MANUALLY, index, 0);
+    	if (replayPromptShown) {
+    		replayPromptShown = false;
+    		if (index == 0) {
+    			InputConnection ic = getCurrentInputConnection();
+    			if (ic != null)
+    				deferredScans.replay(ic, scanCommitter.getSeparator());
+    		} else {
+    			deferredScans.discard();
+    		}
+    		mCandidateView.setSuggestions(null, false, false);
+    		setCandidatesViewShown(false);
+    	}
     }
     
     public void swipeRight() {
-    	Log.d(TAG, "swipeRight");
+    	Tracer.trace(Tracer.DEBUG, TRACE_SWIPE_RIGHT);
         if (mCompletionOn) {
             pickDefaultCandidate();
         }
     }
     
     public void swipeLeft() {
-    	Log.d(TAG, "swipeLeft");
+    	Tracer.trace(Tracer.DEBUG, TRACE_SWIPE_LEFT);
         handleBackspace();
     }
 
     public void swipeDown() {
-    	Log.d(TAG, "swipeDown");
+    	Tracer.trace(Tracer.DEBUG, TRACE_SWIPE_DOWN);
         handleClose();
     }
 
     public void swipeUp() {
-    	Log.d(TAG, "swipeUp");
+    	Tracer.trace(Tracer.DEBUG, TRACE_SWIPE_UP);
     }
     
     public void onPress(int primaryCode) {
-    	Log.d(TAG, "onPress");
+    	Tracer.trace(Tracer.DEBUG, TRACE_ON_PRESS, primaryCode, 0);
     }
     
     public void onRelease(int primaryCode) {
-    	Log.d(TAG, "onRelease");
+    	Tracer.trace(Tracer.DEBUG, TRACE_ON_RELEASE, primaryCode, 0);
     }
     
     @Override
     public void onDestroy() {
-    	if(scannerThread != null)
-    	{
-	    	scannerThread.cancel();
-	    	scannerThread.stop();
-    	}
+    	scannerRegistry.unregister();
+    	for(ReconnectScheduler scheduler : reconnectSchedulers.values())
+    		scheduler.stop();
+    	// Close them all before waiting, so the readers drain side by side
+    	for(ScannerLink link : scannerLinks.values())
+    		link.close(0);
+    	for(ScannerLink link : scannerLinks.values())
+    		link.close(LINK_JOIN_TIMEOUT);
+    	journal.sync();
+    	metricsSnapshotter.stop();
+    	// Nothing on the wheel may keep this instance alive
+    	ReaderWatchdog.stopShared();
+    	TimerWheel.stopShared();
     	super.onDestroy();
     }
 
+	/**
+	 * Called on the scanner thread for every completed frame. Repeats within
+	 * the duplicate window are dropped, the rest is journaled before it is
+	 * queued, and the committer drains the queue on the main thread.
+	 * 
+	 * The journal write and the wait for room in a full queue happen
+	 * outside the lock, so one slow scanner does not hold up the others;
+	 * the lock only serializes the copy into the queue.
+	 */
 	@Override
-	public void barcodeCallBack(final String barcode) {
-		handler.post(new Runnable() {
-			@Override
-			public void run() {
-				try {
-					InputConnection ic = getCurrentInputConnection();
-					if(ic == null)
-						return;
-						
-					String bar = barcode.replaceAll("\\r\\n|\\n|\\r", "");
-					
-					Log.d(TAG, "barcodeCallBack" + " (" + bar + ")");
-					
-					ic.commitText(bar, bar.length());
-					ic = null;
-				} catch (Exception e) {
-					Log.d(TAG, e.getMessage());
-					e.printStackTrace();
-				}
+	public void onScan(ScannerLink link, String barcode) {
+		String address = link.getAddress();
+		ScanCounters counters = link.getCounters();
+		long now = SystemClock.uptimeMillis();
+		boolean duplicate;
+		synchronized (duplicates) {
+			duplicate = duplicates.isDuplicate(address, barcode, now);
+		}
+		if(duplicate)
+		{
+			Tracer.trace(Tracer.DEBUG, TRACE_DUPLICATE_SCAN, barcode.length(), 0);
+			counters.increment(ScanCounters.DUPLICATES);
+			scanPreview.withdraw(address);
+			return;
+		}
+		
+		// Still inside the reader's callback, so its stamps are this frame's
+		FrameReader reader = link.getReader().getReader();
+		long firstByteAt = reader.getFrameStartedAt();
+		long completedAt = reader.getFrameCompletedAt();
+		long journalPosition = journal.append(barcode, address, System.currentTimeMillis());
+		
+		boolean queued = false;
+		if(scanQueue.awaitRoom())
+		{
+			synchronized (scanQueue) {
+				producedScan.text = barcode;
+				producedScan.device = address;
+				producedScan.receivedAt = now;
+				producedScan.counters = counters;
+				producedScan.firstByteAt = firstByteAt;
+				producedScan.completedAt = completedAt;
+				producedScan.journalPosition = journalPosition;
+				queued = scanQueue.offer(producedScan);
+				producedScan.clear();
 			}
-		});
+		}
+		if(!queued)
+		{
+			counters.increment(ScanCounters.DROPPED);
+			scanPreview.withdraw(address);
+		}
+		
+		scanCommitter.schedule();
+	}
+	
+	/**
+	 * Called on the scanner thread while a long barcode arrives, if the
+	 * scanner has previews on. The committed scan replaces the preview.
+	 */
+	@Override
+	public void onScanPreview(ScannerLink link, String partial) {
+		scanPreview.update(link.getAddress(), partial);
 	}
 
+	/**
+	 * Called on whichever thread moved the link. The scheduler and the icon
+	 * only care about the link coming up and going away for good.
+	 */
 	@Override
-	public void barcodeScannerDisconnect() {
-		Log.d(TAG, "barcodeScannerDisconnect");
-		scannerConnected = false;
+	public void onLinkStateChanged(final ScannerLink link, int oldState, final int newState) {
+		if(newState != ScannerLink.CONNECTED && newState != ScannerLink.CLOSED)
+			return;
 		
 		handler.post(new Runnable() {
 			@Override
 			public void run() {
-				Log.d(TAG, "Running the handler");
-				setScannerIcon(scannerConnected);
+				// Ignore links replaced or removed since
+				String address = link.getAddress();
+				ReconnectScheduler scheduler = reconnectSchedulers.get(address);
+				if(scheduler == null || scannerLinks.get(address) != link)
+					return;
+				
+				if(newState == ScannerLink.CONNECTED)
+					scheduler.onConnected();
+				else
+					scheduler.onDisconnected();
+				setScannerIcon(isScannerConnected());
 			}
 		});
-		
 	}
 	
-	@Override
-	public void barcodeScannerConnect() {
-		Log.d(TAG, "scanner connected");
+	/** @return true if any of the scanners is connected */
+	private boolean isScannerConnected() {
+		for(ScannerLink link : scannerLinks.values())
+		{
+			if(link.isConnected())
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Hands the scans made while no editor was bound to the field that just
+	 * got focus, as the replay policy of its application says. The first
+	 * call loads the scans left over from earlier runs in the background and
+	 * comes back here once they are in.
+	 */
+	private void deliverDeferredScans() {
+		if(!deferredScans.isLoaded())
+		{
+			deferredScans.load(new Runnable() {
+				@Override
+				public void run() {
+					if(isInputViewShown())
+						deliverDeferredScans();
+				}
+			});
+			return;
+		}
 		
-		scannerConnected = true;
+		if(deferredScans.size() == 0)
+			return;
 		
-		handler.post(new Runnable() {
-			@Override
-			public void run() {
-				Log.d(TAG, "Running the handler");
-				setScannerIcon(scannerConnected);
-			}
-		});
+		EditorInfo editor = getCurrentInputEditorInfo();
+		InputConnection ic = getCurrentInputConnection();
+		if(editor == null || ic == null)
+			return;
+		
+		switch(scannerPreferences.getReplayPolicy(editor.packageName, DeferredScans.Policy.REPLAY))
+		{
+		case REPLAY:
+			deferredScans.replay(ic, scanCommitter.getSeparator());
+			break;
+		case DISCARD:
+			deferredScans.discard();
+			break;
+		case ASK:
+			if(mCandidateView == null)
+				break;
+			ArrayList<String> choices = new ArrayList<String>();
+			choices.add(getResources().getString(R.string.replay_deferred_scans, deferredScans.size()));
+			choices.add(getResources().getString(R.string.discard_deferred_scans));
+			replayPromptShown = true;
+			setCandidatesViewShown(true);
+			mCandidateView.setSuggestions(choices, false, false);
+			break;
+		}
 	}
 	
-	public void connectToScanner() throws Exception
+	/**
+	 * Gives every registered scanner its own scheduler, so they all connect
+	 * and back off independently, and closes the links of scanners that
+	 * are no longer bonded. A new scanner connects right away.
+	 */
+	private void updateScanners()
 	{
-		Log.d(TAG, "Connecting to scanner!");
-		if(!scannerConnected)
+		String[] addresses = scannerRegistry.getAddresses();
+		for(final String address : addresses)
 		{
-			Log.d(TAG, "No scanner connected");
-			if(this.btAdapter.isDiscovering())
-				this.btAdapter.cancelDiscovery();
+			if(reconnectSchedulers.containsKey(address))
+				continue;
 			
-			pairedDevices = this.btAdapter.getBondedDevices();
+			ReconnectScheduler scheduler = new ReconnectScheduler(handler, new ReconnectScheduler.Connector() {
+				@Override
+				public boolean connect() {
+					try {
+						return connectToScanner(address);
+					} catch (Exception e) {
+						Log.d(TAG, e.getMessage());
+						e.printStackTrace();
+						return false;
+					}
+				}
+			});
+			reconnectSchedulers.put(address, scheduler);
+			scheduler.start();
+		}
+		
+		Iterator<Map.Entry<String, ReconnectScheduler>> it = reconnectSchedulers.entrySet().iterator();
+		while(it.hasNext())
+		{
+			Map.Entry<String, ReconnectScheduler> entry = it.next();
+			if(scannerRegistry.contains(entry.getKey()))
+				continue;
 			
-	        for(BluetoothDevice bd : pairedDevices)
-	        {
-	        	Log.d(TAG, "Bounded dev (" + bd.getName() + ")");
-	        	if(bd.getName().toLowerCase().startsWith("cs30"))
-	        	{
-	        		Log.d(TAG, "We found a scanner from the bounded devs");
-        			Log.d(TAG, "Connecting!");
-		        	scanner = bd.createRfcommSocketToServiceRecord(MY_UUID);
-		        	scannerThread = new ConnectedThread(scanner, SoftKeyboard.this);
-		        	scannerThread.start();
-		        	break;
-	        	}
-	        }
-		} else {
-			Log.d(TAG, "We already have a scanner connected!");
-			setScannerIcon(scannerConnected);
+			Log.d(TAG, "Scanner " + entry.getKey() + " was removed");
+			entry.getValue().stop();
+			it.remove();
+			ScannerLink link = scannerLinks.remove(entry.getKey());
+			if(link != null)
+				link.close(0);
 		}
+		setScannerIcon(isScannerConnected());
 	}
 	
-	public boolean checkConnection()
+	/**
+	 * Starts one connection attempt to the scanner at {@code address}, only
+	 * ever called by that scanner's reconnect scheduler.
+	 * 
+	 * @return false if the attempt could not be started
+	 */
+	private boolean connectToScanner(String address) throws Exception
 	{
-		for(BluetoothDevice bd : btAdapter.getBondedDevices())
+		ScannerLink previous = scannerLinks.get(address);
+		// The state of the previous link, -1 if there was none
+		Tracer.trace(Tracer.DEBUG, TRACE_CONNECT_TO_SCANNER, previous != null ? previous.getState() : -1, 0);
+		if(previous != null && previous.getState() != ScannerLink.CLOSED)
+			return true;
+		
+		if(this.btAdapter.isDiscovering())
+			this.btAdapter.cancelDiscovery();
+		
+		ScanCounters counters = scanCounters.get(address);
+		if(counters == null)
 		{
-			if(bd.getName().toLowerCase().startsWith("cs3070"))
-			{
-				Log.d(TAG, "We have a scanner!");
-				if(scannerThread != null)
+			counters = new ScanCounters(address);
+			scanCounters.put(address, counters);
+		}
+		
+		BluetoothDevice bd = scannerRegistry.getDevice(address);
+		ScannerLink link = new ScannerLink(bd, MY_UUID, scannerPreferences, counters);
+		link.addListener(this);
+		scannerLinks.put(address, link);
+		return link.open();
+	}
+	
+	/**
+	 * The scanner counters and validation results per symbology summed over
+	 * all scanners, plus the queue, commit, journal and watchdog figures.
+	 * Per scanner and per application
+	 * detail is added by {@link #dump}.
+	 */
+	private void registerMetrics()
+	{
+		metrics = new MetricsRegistry();
+		for(int i = 0; i < ScanCounters.size(); i++)
+		{
+			final int counter = i;
+			metrics.gauge("scanners." + ScanCounters.name(i), new MetricsRegistry.Gauge() {
+				@Override
+				public long value() {
+					long sum = 0;
+					for(ScanCounters counters : scanCounters.values())
+						sum += counters.get(counter);
+					return sum;
+				}
+			});
+		}
+		metrics.gauge("scanners.reconnects", new MetricsRegistry.Gauge() {
+			@Override
+			public long value() {
+				long sum = 0;
+				for(ScanCounters counters : scanCounters.values())
+					sum += Math.max(counters.get(ScanCounters.CONNECTS) - 1, 0);
+				return sum;
+			}
+		});
+		metrics.gauge("scanners.connected", new MetricsRegistry.Gauge() {
+			@Override
+			public long value() {
+				long connected = 0;
+				for(ScannerLink link : scannerLinks.values())
 				{
-					if(scannerThread.isAlive()) {
-						Log.d(TAG, "We have an active connection!");
-						scannerConnected = true;
-					} else
-					{
-						Log.d(TAG, "The thread is dead!");
-						scannerConnected = false;
-					}
-				} else {
-					Log.d(TAG, "The thread is null");
-					scannerConnected = false;
+					if(link.isConnected())
+						connected++;
 				}
+				return connected;
 			}
+		});
+		for(int i = 0; i < BarcodeValidator.symbologies(); i++)
+		{
+			final int symbology = i;
+			String name = "validation." + BarcodeValidator.name(i);
+			metrics.gauge(name + ".valid", new MetricsRegistry.Gauge() {
+				@Override
+				public long value() {
+					long sum = 0;
+					for(ScanCounters counters : scanCounters.values())
+						sum += BarcodeValidator.valid(counters.getValidation(), symbology);
+					return sum;
+				}
+			});
+			metrics.gauge(name + ".invalid", new MetricsRegistry.Gauge() {
+				@Override
+				public long value() {
+					long sum = 0;
+					for(ScanCounters counters : scanCounters.values())
+						sum += BarcodeValidator.invalid(counters.getValidation(), symbology);
+					return sum;
+				}
+			});
 		}
+		metrics.gauge("queue.depth", new MetricsRegistry.Gauge() {
+			@Override
+			public long value() {
+				return scanQueue.size();
+			}
+		});
+		metrics.gauge("queue.high_water", new MetricsRegistry.Gauge() {
+			@Override
+			public long value() {
+				return scanQueue.highWater();
+			}
+		});
+		metrics.gauge("queue.dropped", new MetricsRegistry.Gauge() {
+			@Override
+			public long value() {
+				return scanQueue.dropped();
+			}
+		});
+		metrics.register("commit.batch", scanCommitter.getBatchSizes());
+		metrics.gauge("journal.errors", new MetricsRegistry.Gauge() {
+			@Override
+			public long value() {
+				return journal.errors();
+			}
+		});
+		metrics.gauge("watchdog.stalls", new MetricsRegistry.Gauge() {
+			@Override
+			public long value() {
+				return ReaderWatchdog.shared().stalls();
+			}
+		});
+	}
+	
+	/**
+	 * Shown by "adb shell dumpsys input_method" while this keyboard is
+	 * selected.
+	 */
+	@Override
+	protected void dump(FileDescriptor fd, PrintWriter fout, String[] args)
+	{
+		super.dump(fd, fout, args);
 		
-		setScannerIcon(scannerConnected);
-		
-		return scannerConnected;
+		fout.println("Scanner metrics:");
+		metrics.dump(fout, "  ");
+		fout.println("Scanners:");
+		for(ScanCounters counters : scanCounters.values())
+		{
+			ScannerLink link = scannerLinks.get(counters.getDevice());
+			fout.println("  " + counters + (link != null ? " " + ScannerLink.stateName(link.getState()) : ""));
+			dumpLatency(fout, counters.getLatency());
+		}
+		fout.println("Applications:");
+		for(ScanLatency latency : scanCommitter.getPackageLatency())
+		{
+			fout.println("  " + latency.getName());
+			dumpLatency(fout, latency);
+		}
+		fout.println("Trace (" + Tracer.count() + " events):");
+		Tracer.dump(fout);
+	}
+	
+	private void dumpLatency(PrintWriter fout, ScanLatency latency)
+	{
+		for(int i = 0; i < ScanLatency.size(); i++)
+			fout.println("    " + ScanLatency.name(i) + " ms: " + latency.get(i));
 	}
 	
 	public void setScannerIcon(boolean online)
 	{
-		Log.d(TAG, "Set Icon to " + (online ? "online" : "offline"));
+		Tracer.trace(Tracer.DEBUG, TRACE_SET_SCANNER_ICON, online ? 1 : 0, 0);
+		// Scanners connect before the input view exists; onStartInputView
+		// sets the icon once it does
+		if(mInputView == null)
+			return;
 		
 		if (mCurKeyboard != null) {
 			//Log.d(TAG, "Do not have the key");
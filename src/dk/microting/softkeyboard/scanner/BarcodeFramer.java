@@ -0,0 +1,209 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * Cuts the raw byte stream from a scanner into barcode frames.
+ *
+ * Bytes are accumulated in an array allocated once in the constructor. A
+ * frame is handed to the {@link FrameSink} as soon as one of the configured
+ * terminators is seen, so several barcodes arriving in one read are split
+ * and a partial barcode at the end of a read is carried over to the next
+ * call to {@link #feed(byte[], int, int, FrameSink)}. Because a completed
+ * frame is always emitted before the next one starts, the pending bytes
+ * begin at index 0 and no wrap-around handling is needed.
+ *
+ * The framer itself never allocates after construction. It is not thread
+ * safe; it is meant to be owned by the thread reading the scanner.
+ */
+public final class BarcodeFramer {
+
+	/** Carriage return (0x0D) ends a frame. */
+	public static final int TERMINATOR_CR = 1;
+	/** Line feed (0x0A) ends a frame. */
+	public static final int TERMINATOR_LF = 1 << 1;
+	/** The pair CR LF ends a frame and is consumed as one terminator. */
+	public static final int TERMINATOR_CRLF = 1 << 2;
+	/** End of text (0x03) ends a frame. */
+	public static final int TERMINATOR_ETX = 1 << 3;
+	/** Group separator (0x1D) ends a frame. Do not use with GS1 scanners. */
+	public static final int TERMINATOR_GS = 1 << 4;
+
+	public static final int TERMINATORS_DEFAULT = TERMINATOR_CR | TERMINATOR_LF | TERMINATOR_CRLF;
+
+	public static final int DEFAULT_CAPACITY = 4096;
+
+	private static final byte CR = 0x0D;
+	private static final byte LF = 0x0A;
+	private static final byte ETX = 0x03;
+	private static final byte GS = 0x1D;
+
+	private final byte[] frame;
+	private final boolean[] terminator = new boolean[256];
+	private final boolean crlf;
+
+	private int length = 0;
+	// CRLF only: a CR was seen and we do not know yet if a LF follows
+	private boolean pendingCr = false;
+	// CR is a terminator on its own and the LF of a CR LF pair is still to come
+	private boolean swallowLf = false;
+
+	private long frames = 0;
+	private long overflows = 0;
+
+	public BarcodeFramer() {
+		this(DEFAULT_CAPACITY, TERMINATORS_DEFAULT);
+	}
+
+	public BarcodeFramer(int capacity, int terminators) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		this.frame = new byte[capacity];
+		this.crlf = (terminators & TERMINATOR_CRLF) != 0;
+
+		terminator[CR & 0xFF] = (terminators & TERMINATOR_CR) != 0;
+		terminator[LF & 0xFF] = (terminators & TERMINATOR_LF) != 0;
+		terminator[ETX & 0xFF] = (terminators & TERMINATOR_ETX) != 0;
+		terminator[GS & 0xFF] = (terminators & TERMINATOR_GS) != 0;
+	}
+
+	/**
+	 * Appends {@code count} bytes from {@code src} and emits every frame they
+	 * complete. Empty frames (for example the LF after a CR) are skipped.
+	 *
+	 * @return the number of frames handed to the sink
+	 */
+	public int feed(byte[] src, int offset, int count, FrameSink sink) {
+		int emitted = 0;
+		final int end = offset + count;
+
+		for (int i = offset; i < end; i++) {
+			final byte b = src[i];
+
+			if (swallowLf) {
+				swallowLf = false;
+				if (b == LF)
+					continue;
+			}
+
+			if (pendingCr) {
+				pendingCr = false;
+				if (b == LF) {
+					if (emit(sink))
+						emitted++;
+					continue;
+				}
+				emitted += append(CR, sink);
+			}
+
+			if (b == CR && crlf) {
+				if (terminator[CR & 0xFF]) {
+					if (emit(sink))
+						emitted++;
+					swallowLf = true;
+				} else {
+					pendingCr = true;
+				}
+				continue;
+			}
+
+			if (terminator[b & 0xFF]) {
+				if (emit(sink))
+					emitted++;
+				continue;
+			}
+
+			emitted += append(b, sink);
+		}
+
+		return emitted;
+	}
+
+	/**
+	 * Emits whatever is pending as a frame, used when a scanner sends no
+	 * terminator and the frame is ended by a timeout instead.
+	 *
+	 * @return true if a frame was handed to the sink
+	 */
+	public boolean flush(FrameSink sink) {
+		// A trailing lone CR in CRLF mode is treated as the terminator
+		pendingCr = false;
+		swallowLf = false;
+		return emit(sink);
+	}
+
+	/** Drops any pending bytes. */
+	public void reset() {
+		length = 0;
+		pendingCr = false;
+		swallowLf = false;
+	}
+
+	/** @return the number of bytes waiting for a terminator */
+	public int pending() {
+		return length + (pendingCr ? 1 : 0);
+	}
+
+	/**
+	 * The frame still arriving, for previews: valid up to
+	 * {@link #partialLength()} until the next feed. Not a copy.
+	 */
+	public byte[] partial() {
+		return frame;
+	}
+
+	/** @return the bytes of the frame still arriving, without a pending CR */
+	public int partialLength() {
+		return length;
+	}
+
+	public int capacity() {
+		return frame.length;
+	}
+
+	/** @return the number of frames emitted since construction */
+	public long frames() {
+		return frames;
+	}
+
+	/** @return the number of frames that were cut because the buffer was full */
+	public long overflows() {
+		return overflows;
+	}
+
+	private int append(byte b, FrameSink sink) {
+		int emitted = 0;
+		if (length == frame.length) {
+			// No terminator in sight, hand over what we have rather than lose it
+			overflows++;
+			if (emit(sink))
+				emitted++;
+		}
+		frame[length++] = b;
+		return emitted;
+	}
+
+	private boolean emit(FrameSink sink) {
+		if (length == 0)
+			return false;
+
+		final int n = length;
+		length = 0;
+		frames++;
+		sink.onFrame(frame, n);
+		return true;
+	}
+}
@@ -0,0 +1,50 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.IOException;
+
+/**
+ * The byte stream of one scanner, whatever carries it. A
+ * {@link FrameReader} opens the transport and reads it on its own thread;
+ * any other thread may close it.
+ *
+ * Transports are single use: once closed, a reconnect makes a new one.
+ */
+public interface BarcodeTransport {
+
+	/** Connects, blocking until the stream is ready. */
+	void open() throws IOException;
+
+	/**
+	 * Blocks until at least one byte is available.
+	 *
+	 * @return bytes read into {@code buffer}, -1 at the end of the stream
+	 * @throws IOException if the link broke or was closed meanwhile
+	 */
+	int read(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Closes the stream, ending a read in progress. Safe to call from any
+	 * thread and more than once.
+	 */
+	void close();
+
+	/** @return true while open and not known to be broken */
+	boolean isHealthy();
+
+	/** @return identifies the scanner, e.g. its Bluetooth address */
+	String getAddress();
+}
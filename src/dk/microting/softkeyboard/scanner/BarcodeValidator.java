@@ -0,0 +1,320 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Works out which symbology a frame is and verifies its check digit before
+ * it is committed, so a misread is caught here instead of in the backend.
+ *
+ * The AIM symbology identifier is used when the scanner sends one. Without
+ * it the symbology is guessed from the length: 8 digits are EAN-8 (or
+ * UPC-E if only that check digit fits), 12 UPC-A, 13 EAN-13, 14 ITF-14 and
+ * 18 SSCC. GS1 element strings have the check digits of their SSCC, GTIN
+ * and location AIs verified. Code 39 mod 43 is only checked when the
+ * identifier says the check character was transmitted (]A1). Numeric
+ * Code 128 (]C0) is classified and counted only: its mod 103 check
+ * character is verified by the scanner and never transmitted.
+ *
+ * Checks run over the CharSequence with lookup tables for the weights,
+ * the Code 39 values and the UPC-E expansion, and no intermediate
+ * Strings. Results are counted per symbology, and the counters can be
+ * read from any thread.
+ */
+public final class BarcodeValidator {
+
+	public enum Policy {
+		/** Do not look at the frames at all. */
+		OFF,
+		/** Count failures but deliver the frame anyway. */
+		FLAG,
+		/** Drop frames that fail their check. */
+		REJECT
+	}
+
+	public static final int UNKNOWN = 0;
+	public static final int EAN_8 = 1;
+	public static final int EAN_13 = 2;
+	public static final int UPC_A = 3;
+	public static final int UPC_E = 4;
+	public static final int ITF_14 = 5;
+	public static final int SSCC = 6;
+	public static final int CODE_39 = 7;
+	public static final int GS1 = 8;
+	public static final int CODE_128 = 9;
+
+	static final int SYMBOLOGIES = 10;
+	private static final String[] NAMES = {
+		"unknown", "ean8", "ean13", "upca", "upce", "itf14", "sscc", "code39", "gs1", "code128"
+	};
+
+	/** Set in a result when the check failed. */
+	public static final int INVALID = 0x100;
+
+	private static final String CODE_39_CHARS = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZ-. $/+%";
+	// Value of each character, -1 if it is not Code 39
+	private static final int[] CODE_39_VALUES = new int[128];
+
+	// A digit times the mod 10 weight, indexed by weight then digit
+	private static final int[][] WEIGHTED = new int[4][10];
+
+	// Where each of the data digits 1-10 of the UPC-A form comes from, by
+	// the last UPC-E digit: digit n of the UPC-E code, or 0 for a zero
+	private static final int[][] UPC_E_EXPANSION = {
+		{ 1, 2, 6, 0, 0, 0, 0, 3, 4, 5 },
+		{ 1, 2, 6, 0, 0, 0, 0, 3, 4, 5 },
+		{ 1, 2, 6, 0, 0, 0, 0, 3, 4, 5 },
+		{ 1, 2, 3, 0, 0, 0, 0, 0, 4, 5 },
+		{ 1, 2, 3, 4, 0, 0, 0, 0, 0, 5 },
+		{ 1, 2, 3, 4, 5, 0, 0, 0, 0, 6 },
+		{ 1, 2, 3, 4, 5, 0, 0, 0, 0, 6 },
+		{ 1, 2, 3, 4, 5, 0, 0, 0, 0, 6 },
+		{ 1, 2, 3, 4, 5, 0, 0, 0, 0, 6 },
+		{ 1, 2, 3, 4, 5, 0, 0, 0, 0, 6 },
+	};
+
+	static {
+		for (int i = 0; i < CODE_39_VALUES.length; i++)
+			CODE_39_VALUES[i] = CODE_39_CHARS.indexOf(i);
+		for (int digit = 0; digit < 10; digit++) {
+			WEIGHTED[1][digit] = digit;
+			WEIGHTED[3][digit] = digit * 3;
+		}
+	}
+
+	private static final ThreadLocal<Gs1Message> GS1_MESSAGE = new ThreadLocal<Gs1Message>() {
+		@Override
+		protected Gs1Message initialValue() {
+			return new Gs1Message();
+		}
+	};
+
+	private final Policy policy;
+	// valid at 2 * symbology, invalid at 2 * symbology + 1
+	private final AtomicLongArray counts;
+
+	public BarcodeValidator(Policy policy) {
+		this(policy, newCounts());
+	}
+
+	/**
+	 * @param counts where results are counted, from {@link #newCounts()};
+	 *        shared so the counts outlive the validator of one connection
+	 */
+	public BarcodeValidator(Policy policy, AtomicLongArray counts) {
+		if (counts.length() != SYMBOLOGIES * 2)
+			throw new IllegalArgumentException("counts must come from newCounts()");
+		this.policy = policy;
+		this.counts = counts;
+	}
+
+	public static AtomicLongArray newCounts() {
+		return new AtomicLongArray(SYMBOLOGIES * 2);
+	}
+
+	/** @return the number of symbologies, for iterating over the counts */
+	public static int symbologies() {
+		return SYMBOLOGIES;
+	}
+
+	/** @return valid frames of {@code symbology} in {@code counts} */
+	public static long valid(AtomicLongArray counts, int symbology) {
+		return counts.get(symbology * 2);
+	}
+
+	/** @return invalid frames of {@code symbology} in {@code counts} */
+	public static long invalid(AtomicLongArray counts, int symbology) {
+		return counts.get(symbology * 2 + 1);
+	}
+
+	public Policy policy() {
+		return policy;
+	}
+
+	/**
+	 * Validates the frame under the configured policy and counts the result.
+	 *
+	 * @return false if the frame should be dropped
+	 */
+	public boolean accept(CharSequence text) {
+		if (policy == Policy.OFF)
+			return true;
+
+		int result = validate(text);
+		int symbology = result & ~INVALID;
+		boolean valid = (result & INVALID) == 0;
+		counts.incrementAndGet(symbology * 2 + (valid ? 0 : 1));
+
+		return valid || policy != Policy.REJECT;
+	}
+
+	/**
+	 * @return the symbology, with {@link #INVALID} set if its check failed.
+	 *         UNKNOWN frames have nothing to check and are never invalid.
+	 */
+	public static int validate(CharSequence text) {
+		int offset = 0;
+		char id = 0;
+		char modifier = 0;
+		final int length = text.length();
+
+		if (length >= 3 && text.charAt(0) == ']') {
+			id = text.charAt(1);
+			modifier = text.charAt(2);
+			offset = 3;
+		}
+
+		if (id == 'A' && modifier == '1')
+			return result(CODE_39, code39(text, offset, length));
+
+		if (isGs1(id, modifier) || containsGs(text, offset, length))
+			return result(GS1, gs1(text));
+
+		if (id == 'C' && modifier == '0')
+			return allDigits(text, offset, length) ? CODE_128 : UNKNOWN;
+
+		if (id != 0 && id != 'E' && id != 'I')
+			return UNKNOWN;
+		if (!allDigits(text, offset, length))
+			return UNKNOWN;
+
+		switch (length - offset) {
+		case 8:
+			if (mod10(text, offset, length))
+				return id == 'E' && modifier == '0' && upcE(text, offset) ? UPC_E : EAN_8;
+			if (text.charAt(offset) <= '1')
+				return result(UPC_E, upcE(text, offset));
+			return EAN_8 | INVALID;
+		case 12:
+			return result(UPC_A, mod10(text, offset, length));
+		case 13:
+			return result(EAN_13, mod10(text, offset, length));
+		case 14:
+			return result(ITF_14, mod10(text, offset, length));
+		case 18:
+			return result(SSCC, mod10(text, offset, length));
+		default:
+			return UNKNOWN;
+		}
+	}
+
+	public static String name(int symbology) {
+		return NAMES[symbology & ~INVALID];
+	}
+
+	public long valid(int symbology) {
+		return valid(counts, symbology);
+	}
+
+	public long invalid(int symbology) {
+		return invalid(counts, symbology);
+	}
+
+	/**
+	 * GS1 mod 10: from the right, data digits are weighted 3, 1, 3, ... and
+	 * the last digit makes the sum a multiple of ten.
+	 */
+	static boolean mod10(CharSequence text, int start, int end) {
+		int sum = 0;
+		int weight = 3;
+		for (int i = end - 2; i >= start; i--) {
+			sum += WEIGHTED[weight][text.charAt(i) - '0'];
+			weight = 4 - weight;
+		}
+		return (10 - sum % 10) % 10 == text.charAt(end - 1) - '0';
+	}
+
+	/** Checks UPC-E by its UPC-A expansion, without building the expansion. */
+	static boolean upcE(CharSequence text, int offset) {
+		if (text.charAt(offset) > '1')
+			return false;
+
+		int[] expansion = UPC_E_EXPANSION[text.charAt(offset + 6) - '0'];
+		// The number system digit comes first
+		int sum = WEIGHTED[3][text.charAt(offset) - '0'];
+		int weight = 1;
+		for (int i = 0; i < expansion.length; i++) {
+			int from = expansion[i];
+			if (from != 0)
+				sum += WEIGHTED[weight][text.charAt(offset + from) - '0'];
+			weight = 4 - weight;
+		}
+		return (10 - sum % 10) % 10 == text.charAt(offset + 7) - '0';
+	}
+
+	static boolean code39(CharSequence text, int start, int end) {
+		if (end - start < 2)
+			return false;
+
+		int sum = 0;
+		for (int i = start; i < end - 1; i++) {
+			int value = code39Value(text.charAt(i));
+			if (value < 0)
+				return false;
+			sum += value;
+		}
+		return code39Value(text.charAt(end - 1)) == sum % 43;
+	}
+
+	private static int code39Value(char c) {
+		return c < CODE_39_VALUES.length ? CODE_39_VALUES[c] : -1;
+	}
+
+	private static boolean gs1(CharSequence text) {
+		Gs1Message message = GS1_MESSAGE.get();
+		if (!Gs1Parser.parse(text, message))
+			return false;
+
+		boolean valid = true;
+		for (int i = 0; i < message.count && valid; i++) {
+			int ai = message.ai[i];
+			boolean checked = ai == Gs1Message.SSCC || ai == Gs1Message.GTIN
+					|| ai == Gs1Message.CONTENT || (ai >= 410 && ai <= 417);
+			if (checked)
+				valid = allDigits(text, message.start[i], message.end[i])
+						&& mod10(text, message.start[i], message.end[i]);
+		}
+		message.clear();
+		return valid;
+	}
+
+	private static boolean isGs1(char id, char modifier) {
+		return (id == 'C' && modifier == '1') || (id == 'd' && modifier == '2')
+				|| (id == 'Q' && modifier == '3') || (id == 'e' && modifier == '0');
+	}
+
+	private static boolean containsGs(CharSequence text, int start, int end) {
+		for (int i = start; i < end; i++)
+			if (text.charAt(i) == Gs1Parser.GS)
+				return true;
+		return false;
+	}
+
+	private static boolean allDigits(CharSequence text, int start, int end) {
+		if (start >= end)
+			return false;
+		for (int i = start; i < end; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9')
+				return false;
+		}
+		return true;
+	}
+
+	private static int result(int symbology, boolean valid) {
+		return valid ? symbology : symbology | INVALID;
+	}
+}
@@ -0,0 +1,138 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * Learns how long a scanner pauses between the chunks of one frame and
+ * derives the end-of-frame timeout for scanners that send no terminator.
+ *
+ * Gaps are counted in a fixed histogram of {@link #BUCKET_MS} wide buckets,
+ * so recording a sample is a single increment. When the histogram holds
+ * {@link #WINDOW} samples every bucket is halved, which lets the estimate
+ * follow a link that gets slower or faster. The timeout is the
+ * {@link #PERCENTILE} gap times {@link #FACTOR} plus {@link #MARGIN_MS},
+ * clamped to the configured bounds.
+ *
+ * Not thread safe, callers synchronize.
+ */
+public final class CadenceEstimator {
+
+	public static final long DEFAULT_MIN_TIMEOUT = 30;
+	public static final long DEFAULT_MAX_TIMEOUT = 500;
+
+	static final int BUCKET_MS = 2;
+	static final int BUCKETS = 256;
+	static final int WINDOW = 1024;
+	static final int WARMUP = 32;
+	static final double PERCENTILE = 0.95;
+	static final int FACTOR = 2;
+	static final int MARGIN_MS = 10;
+
+	private final int[] histogram = new int[BUCKETS];
+	private final long minTimeout;
+	private final long maxTimeout;
+
+	private int count = 0;
+	private long samples = 0;
+	private long timeout;
+
+	public CadenceEstimator(long initialTimeout) {
+		this(DEFAULT_MIN_TIMEOUT, DEFAULT_MAX_TIMEOUT, initialTimeout);
+	}
+
+	/**
+	 * @param minTimeout lower bound of the derived timeout in ms
+	 * @param maxTimeout upper bound of the derived timeout in ms, gaps longer
+	 *                   than this are taken to be pauses between scans
+	 * @param initialTimeout the timeout used until enough gaps are seen,
+	 *                       typically the value persisted for the device
+	 */
+	public CadenceEstimator(long minTimeout, long maxTimeout, long initialTimeout) {
+		if (minTimeout <= 0 || maxTimeout < minTimeout)
+			throw new IllegalArgumentException("bad timeout bounds " + minTimeout + ".." + maxTimeout);
+
+		this.minTimeout = minTimeout;
+		this.maxTimeout = maxTimeout;
+		this.timeout = clamp(initialTimeout);
+	}
+
+	/**
+	 * Records the silence between two reads in ms.
+	 *
+	 * @return true if the derived timeout changed
+	 */
+	public boolean record(long gap) {
+		if (gap < 0 || gap >= maxTimeout)
+			return false;
+
+		int bucket = (int) (gap / BUCKET_MS);
+		if (bucket >= BUCKETS)
+			bucket = BUCKETS - 1;
+
+		histogram[bucket]++;
+		samples++;
+		if (++count >= WINDOW)
+			decay();
+
+		if (samples < WARMUP)
+			return false;
+
+		long next = derive();
+		if (next == timeout)
+			return false;
+		timeout = next;
+		return true;
+	}
+
+	/** @return the end-of-frame timeout in ms */
+	public long timeout() {
+		return timeout;
+	}
+
+	/** @return the number of gaps recorded since construction */
+	public long samples() {
+		return samples;
+	}
+
+	private long derive() {
+		final int rank = (int) Math.ceil(count * PERCENTILE);
+		int seen = 0;
+		int bucket = 0;
+		for (; bucket < BUCKETS - 1; bucket++) {
+			seen += histogram[bucket];
+			if (seen >= rank)
+				break;
+		}
+		// Upper edge of the bucket, so the estimate errs on the long side
+		long gap = (long) (bucket + 1) * BUCKET_MS;
+		return clamp(gap * FACTOR + MARGIN_MS);
+	}
+
+	private void decay() {
+		count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			histogram[i] >>= 1;
+			count += histogram[i];
+		}
+	}
+
+	private long clamp(long value) {
+		if (value < minTimeout)
+			return minTimeout;
+		if (value > maxTimeout)
+			return maxTimeout;
+		return value;
+	}
+}
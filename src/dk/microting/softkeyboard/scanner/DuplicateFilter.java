@@ -0,0 +1,156 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * Suppresses a barcode that the same scanner sent within a short window,
+ * which catches double triggers and the codes a scanner in batch mode
+ * sends again after a reconnect. Two scanners reading the same code are
+ * not duplicates of each other.
+ *
+ * Recent barcodes are remembered as 64-bit hashes of scanner and barcode
+ * with the time they were last accepted, in a fixed table where each hash
+ * can live in one of {@link #WAYS} neighbouring slots. A lookup touches at
+ * most those slots, and a new hash replaces the least recently accepted
+ * of them, so the table behaves as a small LRU without allocating.
+ *
+ * Not thread safe, callers synchronize.
+ */
+public final class DuplicateFilter {
+
+	public static final long DEFAULT_WINDOW = 1000;
+	public static final int DEFAULT_CAPACITY = 64;
+
+	static final int WAYS = 4;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private final long[] hashes;
+	private final long[] seenAt;
+	private final int mask;
+	private final long window;
+
+	private long suppressed = 0;
+
+	public DuplicateFilter() {
+		this(DEFAULT_CAPACITY, DEFAULT_WINDOW);
+	}
+
+	/**
+	 * @param capacity number of barcodes remembered, rounded up to a power
+	 *                 of two
+	 * @param window ms within which a repeat counts as a duplicate, 0 turns
+	 *               the filter off
+	 */
+	public DuplicateFilter(int capacity, long window) {
+		int size = Integer.highestOneBit(Math.max(capacity, WAYS));
+		if (size < capacity)
+			size <<= 1;
+
+		this.hashes = new long[size];
+		this.seenAt = new long[size];
+		this.mask = size - 1;
+		this.window = window;
+	}
+
+	/** Same as {@link #isDuplicate(CharSequence, CharSequence, long)} for a single scanner. */
+	public boolean isDuplicate(CharSequence barcode, long now) {
+		return isDuplicate(null, barcode, now);
+	}
+
+	/**
+	 * Remembers the barcode and tells whether the scanner sent it less than
+	 * the window after it was last accepted. A suppressed repeat does not
+	 * move the window, so identical items scanned one after another are
+	 * each let through once the window has passed.
+	 *
+	 * @param device the scanner, e.g. its address, may be null
+	 * @param now current time in ms, any monotonic time base
+	 */
+	public boolean isDuplicate(CharSequence device, CharSequence barcode, long now) {
+		if (window <= 0)
+			return false;
+
+		// A zero time marks an empty slot
+		if (now == 0)
+			now = 1;
+
+		final long hash = hash(device, barcode);
+		final int base = (int) (hash ^ (hash >>> 32)) & mask;
+
+		int victim = base;
+		long oldest = Long.MAX_VALUE;
+		for (int way = 0; way < WAYS; way++) {
+			int slot = (base + way) & mask;
+			long at = seenAt[slot];
+
+			if (at != 0 && hashes[slot] == hash) {
+				if (now - at < window) {
+					suppressed++;
+					return true;
+				}
+				seenAt[slot] = now;
+				return false;
+			}
+
+			if (at < oldest) {
+				oldest = at;
+				victim = slot;
+			}
+		}
+
+		hashes[victim] = hash;
+		seenAt[victim] = now;
+		return false;
+	}
+
+	/** Forgets every barcode seen so far. */
+	public void clear() {
+		for (int i = 0; i < seenAt.length; i++) {
+			seenAt[i] = 0;
+			hashes[i] = 0;
+		}
+	}
+
+	public long window() {
+		return window;
+	}
+
+	/** @return the number of barcodes suppressed since construction */
+	public long suppressed() {
+		return suppressed;
+	}
+
+	static long hash(CharSequence device, CharSequence text) {
+		long hash = FNV_OFFSET;
+		if (device != null) {
+			hash = mix(hash, device);
+			// Keeps "ab" + "c" apart from "a" + "bc"
+			hash = (hash ^ 0xFF) * FNV_PRIME;
+		}
+		return mix(hash, text);
+	}
+
+	private static long mix(long hash, CharSequence text) {
+		final int length = text.length();
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			hash = (hash ^ (c & 0xFF)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return hash;
+	}
+}
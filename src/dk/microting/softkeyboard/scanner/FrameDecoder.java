@@ -0,0 +1,100 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Turns the bytes of a frame into text with the charset the scanner is
+ * configured for.
+ *
+ * The decoder, the output CharBuffer and the ByteBuffer view of the
+ * framer's array are created once and reused. A frame costs the resulting
+ * String and nothing else. Decoding runs on whole frames cut by the
+ * {@link BarcodeFramer}, so a multi-byte sequence split over two reads has
+ * already been joined again when it gets here. {@link #decodePartial} shows
+ * an unfinished frame and holds back a trailing incomplete sequence until
+ * its remaining bytes arrive.
+ *
+ * Not thread safe, meant to be used from the framer's sink.
+ */
+public final class FrameDecoder {
+
+	public static final Charset DEFAULT_CHARSET = Charset.forName("ISO-8859-1");
+
+	private final CharsetDecoder decoder;
+	private final CharBuffer chars;
+	private byte[] wrapped;
+	private ByteBuffer bytes;
+
+	public FrameDecoder(Charset charset, int capacity) {
+		this.decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		// Every supported charset yields at most one char per byte
+		this.chars = CharBuffer.allocate(capacity);
+	}
+
+	public Charset charset() {
+		return decoder.charset();
+	}
+
+	/** Decodes a complete frame. */
+	public String decode(byte[] frame, int length) {
+		return run(frame, length, true);
+	}
+
+	/**
+	 * Decodes the start of a frame that is still arriving. Bytes of a
+	 * character that is not complete yet are left out.
+	 */
+	public String decodePartial(byte[] frame, int length) {
+		return run(frame, length, false);
+	}
+
+	/**
+	 * Decodes into the reused buffer and returns it, valid until the next
+	 * call. Lets callers that only need the chars skip the String.
+	 */
+	public CharBuffer decodeToBuffer(byte[] frame, int length) {
+		fill(frame, length, true);
+		return chars;
+	}
+
+	private String run(byte[] frame, int length, boolean endOfInput) {
+		fill(frame, length, endOfInput);
+		return new String(chars.array(), 0, chars.limit());
+	}
+
+	private void fill(byte[] frame, int length, boolean endOfInput) {
+		if (frame != wrapped) {
+			wrapped = frame;
+			bytes = ByteBuffer.wrap(frame);
+		}
+		bytes.limit(length).position(0);
+
+		decoder.reset();
+		chars.clear();
+		CoderResult result = decoder.decode(bytes, chars, endOfInput);
+		if (endOfInput && !result.isOverflow())
+			decoder.flush(chars);
+		chars.flip();
+	}
+}
@@ -0,0 +1,197 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded single-producer/single-consumer ring of completed frames.
+ *
+ * The slots are allocated once; {@link #offer(ScanFrame)} and
+ * {@link #poll(ScanFrame)} copy the fields in and out so neither side
+ * allocates. Only one thread may offer at a time and only one thread may
+ * poll at a time. Several producers have to serialize their offers, which
+ * is what the scanner links do.
+ *
+ * What happens when the ring is full is decided by the {@link Overflow}
+ * policy. Dropped frames and the deepest the ring has been are counted.
+ */
+public final class FrameQueue {
+
+	public enum Overflow {
+		/** Wait for the consumer, dropping the new frame after the block timeout. */
+		BLOCK,
+		/** Discard the oldest frame still queued to make room. */
+		DROP_OLDEST,
+		/** Discard the frame being offered. */
+		DROP_NEWEST
+	}
+
+	public static final int DEFAULT_CAPACITY = 128;
+	public static final long DEFAULT_BLOCK_TIMEOUT = 2000;
+
+	private static final long PARK_NANOS = 100 * 1000;
+
+	private final ScanFrame[] slots;
+	private final int mask;
+	private final Overflow overflow;
+	private final long blockTimeoutNanos;
+
+	// Next slot to poll; also advanced by the producer under DROP_OLDEST
+	private final AtomicLong head = new AtomicLong();
+	// Next slot to fill, only written by the producer
+	private final AtomicLong tail = new AtomicLong();
+
+	// Single writer (the producer), read from anywhere
+	private volatile long offered = 0;
+	private volatile long dropped = 0;
+	private volatile int highWater = 0;
+	// Drops by awaitRoom(), which producers call without serializing
+	private final AtomicLong roomTimeouts = new AtomicLong();
+
+	public FrameQueue() {
+		this(DEFAULT_CAPACITY, Overflow.BLOCK, DEFAULT_BLOCK_TIMEOUT);
+	}
+
+	/**
+	 * @param capacity number of slots, rounded up to a power of two
+	 * @param overflow what to do when the ring is full
+	 * @param blockTimeout ms to wait for room under {@link Overflow#BLOCK}
+	 */
+	public FrameQueue(int capacity, Overflow overflow, long blockTimeout) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+
+		int size = Integer.highestOneBit(capacity);
+		if (size < capacity)
+			size <<= 1;
+
+		this.slots = new ScanFrame[size];
+		for (int i = 0; i < size; i++)
+			slots[i] = new ScanFrame();
+		this.mask = size - 1;
+		this.overflow = overflow;
+		this.blockTimeoutNanos = blockTimeout * 1000 * 1000;
+	}
+
+	/**
+	 * Copies {@code frame} into the ring. Producer side.
+	 *
+	 * @return false if the frame was dropped
+	 */
+	public boolean offer(ScanFrame frame) {
+		final long t = tail.get();
+		offered++;
+
+		long deadline = 0;
+		while (t - head.get() >= slots.length) {
+			switch (overflow) {
+			case DROP_NEWEST:
+				dropped++;
+				return false;
+			case DROP_OLDEST:
+				long h = head.get();
+				if (t - h >= slots.length && head.compareAndSet(h, h + 1))
+					dropped++;
+				break;
+			case BLOCK:
+				long now = System.nanoTime();
+				if (deadline == 0)
+					deadline = now + blockTimeoutNanos;
+				if (now - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+					dropped++;
+					return false;
+				}
+				LockSupport.parkNanos(PARK_NANOS);
+				break;
+			}
+		}
+
+		slots[(int) t & mask].set(frame);
+		tail.lazySet(t + 1);
+
+		int depth = (int) (t + 1 - head.get());
+		if (depth > highWater)
+			highWater = depth;
+		return true;
+	}
+
+	/**
+	 * Waits under {@link Overflow#BLOCK} until the ring has room, copying
+	 * nothing, so producers that serialize their offers can do the waiting
+	 * outside their lock. An offer right after only waits if another
+	 * producer took the room meanwhile. Other policies never wait.
+	 *
+	 * @return false if the block timeout passed first; the frame counts as
+	 *         dropped and should not be offered
+	 */
+	public boolean awaitRoom() {
+		if (overflow != Overflow.BLOCK)
+			return true;
+
+		long deadline = 0;
+		while (tail.get() - head.get() >= slots.length) {
+			long now = System.nanoTime();
+			if (deadline == 0)
+				deadline = now + blockTimeoutNanos;
+			if (now - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+				roomTimeouts.incrementAndGet();
+				return false;
+			}
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+		return true;
+	}
+
+	/**
+	 * Copies the oldest frame into {@code into} and removes it. Consumer side.
+	 *
+	 * @return false if the ring was empty
+	 */
+	public boolean poll(ScanFrame into) {
+		for (;;) {
+			final long h = head.get();
+			if (h >= tail.get())
+				return false;
+
+			into.set(slots[(int) h & mask]);
+			// Fails only if the producer dropped this slot while we copied it
+			if (head.compareAndSet(h, h + 1))
+				return true;
+		}
+	}
+
+	public int size() {
+		long size = tail.get() - head.get();
+		return size < 0 ? 0 : (int) size;
+	}
+
+	public int capacity() {
+		return slots.length;
+	}
+
+	public long offered() {
+		return offered;
+	}
+
+	public long dropped() {
+		return dropped + roomTimeouts.get();
+	}
+
+	public int highWater() {
+		return highWater;
+	}
+}
@@ -0,0 +1,544 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * The ingest engine of one scanner: reads its {@link BarcodeTransport},
+ * cuts the bytes into frames, then decodes, validates and transforms each
+ * frame and hands the barcode to its {@link Listener}.
+ *
+ * A frame ends at a terminator, or after the scanner has been silent for
+ * the inter-byte timeout its {@link CadenceEstimator} learned. The timeout
+ * runs on a {@link TimerWheel}, which only hands the flush to the delivery
+ * executor, so a listener that blocks never holds up other timers. The
+ * flush happens under the same lock as the read, so nothing arriving
+ * meanwhile is lost and frames keep their order.
+ *
+ * The reader keeps when it last read a byte and when it last saw the
+ * scanner's heartbeat frame, if one is configured, so a
+ * {@link ReaderWatchdog} can end a link that went silent without erroring.
+ *
+ * With previews on, a frame spread over several reads is also handed over
+ * while it arrives, at most once per inter-byte timeout, so long payloads
+ * show up before they are complete.
+ *
+ * Plain Java, so the engine runs and can be benchmarked off the device.
+ * {@link #run()} is meant to be the body of a dedicated thread.
+ */
+public class FrameReader implements Runnable, FrameSink {
+
+	/**
+	 * Silence after the last byte before a frame without terminator is sent,
+	 * until the cadence of the scanner has been learned. Only scanners
+	 * configured without a suffix ever wait for this.
+	 */
+	public static final long DEFAULT_FRAME_TIMEOUT = 200;
+
+	public static final int READ_SIZE = 1024;
+	
+	/**
+	 * Silence in ms after which the watchdog gives up on a link: never,
+	 * because a scanner without heartbeat is silent between scans. With a
+	 * heartbeat interval configured the limit is
+	 * {@link #SILENCE_HEARTBEATS} intervals.
+	 */
+	public static final long DEFAULT_SILENCE_LIMIT = 0;
+
+	/** Heartbeats a scanner may miss before the watchdog ends its link. */
+	public static final int SILENCE_HEARTBEATS = 3;
+
+	// Report the learned timeout after this many new gaps
+	private static final int SAVE_INTERVAL = 256;
+
+	private static final int TRACE_READ = Tracer.event("read");
+	private static final int TRACE_FRAME = Tracer.event("frame");
+	private static final int TRACE_REJECT = Tracer.event("reject");
+
+	/**
+	 * Called on the reader thread, and on the delivery thread for frames ended
+	 * by the timeout.
+	 */
+	public interface Listener {
+		void onConnected(FrameReader reader);
+
+		/** @param barcode the decoded and transformed barcode */
+		void onBarcode(FrameReader reader, String barcode);
+
+		/** A frame failed its check digit and was dropped. */
+		void onRejected(FrameReader reader, CharSequence frame);
+
+		/**
+		 * The start of the frame still arriving, decoded but not validated
+		 * or transformed. Only called with previews on. The frame ends in
+		 * {@link #onBarcode} or {@link #onRejected}.
+		 */
+		void onPartial(FrameReader reader, String partial);
+
+		/** The learned inter-byte timeout is worth storing. */
+		void onTimeoutLearned(FrameReader reader, long timeout);
+
+		/**
+		 * The transport is closed and every frame read from it has been
+		 * delivered. This is the last call the reader makes.
+		 *
+		 * @param cause why the link ended, null if it was cancelled
+		 */
+		void onDisconnected(FrameReader reader, IOException cause);
+	}
+
+	private static ExecutorService sharedDelivery;
+
+	private final BarcodeTransport transport;
+	private final Listener listener;
+	private final BarcodeFramer framer;
+	private final FrameDecoder decoder;
+	private final BarcodeValidator validator;
+	private final TransformPipeline transform;
+	private final StringBuilder transformed = new StringBuilder();
+	private final TimerWheel wheel;
+	private final FrameTimeout frameTimeout = new FrameTimeout();
+	private final Executor delivery;
+	private final byte[] buffer = new byte[READ_SIZE];
+	private final String heartbeat;
+	private final long silenceLimit;
+	private final boolean preview;
+	private final ScanCounters counters;
+
+	// Guarded by framer
+	private final CadenceEstimator cadence;
+	private boolean timeoutArmed = false;
+	private long lastByteAt;
+	private long savedAt;
+	private boolean cadenceChanged = false;
+	private long previewAt;
+	private int previewLength;
+	// System.nanoTime() stamps of the frame being delivered
+	private long readAt;
+	private long frameStartedAt;
+	private long frameCompletedAt;
+
+	private volatile boolean run = true;
+	private volatile IOException abortCause;
+	// Read by the watchdog, System.nanoTime() in ms
+	private volatile long connectedAt;
+	private volatile long lastReadAt;
+	private volatile long lastHeartbeatAt;
+
+	private FrameReader(Builder builder) {
+		this.transport = builder.transport;
+		this.listener = builder.listener;
+		this.framer = new BarcodeFramer(builder.capacity, builder.terminators);
+		this.cadence = builder.cadence != null ? builder.cadence : new CadenceEstimator(DEFAULT_FRAME_TIMEOUT);
+		this.decoder = new FrameDecoder(builder.charset, framer.capacity());
+		this.validator = builder.counters != null
+				? new BarcodeValidator(builder.validation, builder.counters.getValidation())
+				: new BarcodeValidator(builder.validation);
+		this.transform = builder.transform;
+		this.wheel = builder.wheel != null ? builder.wheel : TimerWheel.shared();
+		this.delivery = builder.delivery != null ? builder.delivery : sharedDelivery();
+		this.heartbeat = builder.heartbeat;
+		if (builder.silenceLimit > 0 || heartbeat == null || builder.heartbeatInterval <= 0)
+			this.silenceLimit = builder.silenceLimit;
+		else
+			this.silenceLimit = builder.heartbeatInterval * SILENCE_HEARTBEATS;
+		this.preview = builder.preview;
+		this.counters = builder.counters;
+	}
+
+	/** @return the thread delivering timed out frames of every reader */
+	static synchronized Executor sharedDelivery() {
+		if (sharedDelivery == null) {
+			sharedDelivery = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "FrameDelivery");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedDelivery;
+	}
+
+	/** @return the monotonic clock the reader's times are in, in ms */
+	public static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	public BarcodeTransport getTransport() {
+		return transport;
+	}
+
+	public BarcodeValidator getValidator() {
+		return validator;
+	}
+
+	/** @return true if frames are handed over while they arrive */
+	public boolean isPreview() {
+		return preview;
+	}
+
+	/** @return ms of silence the watchdog allows, 0 for no limit */
+	public long getSilenceLimit() {
+		return silenceLimit;
+	}
+
+	/** @return when the transport was opened, 0 if it is not yet */
+	public long getConnectedAt() {
+		return connectedAt;
+	}
+
+	/** @return when bytes were last read, 0 if none were */
+	public long getLastReadAt() {
+		return lastReadAt;
+	}
+
+	/** @return when the last heartbeat frame arrived, 0 if none did */
+	public long getLastHeartbeatAt() {
+		return lastHeartbeatAt;
+	}
+
+	/** @return the latest sign of life of the scanner, in {@link #now()} time */
+	public long getLastActivityAt() {
+		return Math.max(connectedAt, Math.max(lastReadAt, lastHeartbeatAt));
+	}
+
+	/**
+	 * @return System.nanoTime() of the read that brought the first byte of
+	 *         the frame being delivered; only valid inside the listener
+	 */
+	public long getFrameStartedAt() {
+		return frameStartedAt;
+	}
+
+	/**
+	 * @return System.nanoTime() when the frame being delivered was complete;
+	 *         only valid inside the listener
+	 */
+	public long getFrameCompletedAt() {
+		return frameCompletedAt;
+	}
+
+	/** @return the inter-byte timeout currently in use, in ms */
+	public long getFrameTimeout() {
+		synchronized (framer) {
+			return cadence.timeout();
+		}
+	}
+
+	@Override
+	public void run() {
+		IOException cause = null;
+		try {
+			transport.open();
+			connectedAt = now();
+			listener.onConnected(this);
+		} catch (IOException e) {
+			cause = e;
+			run = false;
+		}
+
+		while (run) {
+			try {
+				int bytes = transport.read(buffer, 0, buffer.length);
+				if (bytes < 0)
+					throw new EOFException("End of stream");
+				long stamp = System.nanoTime();
+				if (counters != null)
+					counters.add(ScanCounters.BYTES, bytes);
+				Tracer.trace(Tracer.VERBOSE, TRACE_READ, bytes, 0);
+
+				// A frame is handed over the moment its terminator is read.
+				// Only a frame still missing its terminator arms the timeout.
+				synchronized (framer) {
+					long now = now();
+					lastReadAt = now;
+					// Only a gap inside a frame is an inter-byte gap; the
+					// pause before a new frame is the time between scans
+					if (lastByteAt != 0 && framer.pending() > 0 && cadence.record(now - lastByteAt))
+						cadenceChanged = true;
+					lastByteAt = now;
+					readAt = stamp;
+
+					framer.feed(buffer, 0, bytes, this);
+					if (framer.pending() > 0 && frameStartedAt == 0)
+						frameStartedAt = stamp;
+
+					if (framer.pending() > 0 && !timeoutArmed) {
+						timeoutArmed = true;
+						wheel.schedule(frameTimeout, cadence.timeout());
+					}
+
+					if (preview)
+						preview(now);
+				}
+
+				if (cadenceChanged && cadence.samples() - savedAt >= SAVE_INTERVAL)
+					reportTimeout();
+			} catch (IOException e) {
+				// A read failing because of cancel() is not a failure
+				if (run)
+					cause = e;
+				run = false;
+			}
+		}
+
+		if (cause == null)
+			cause = abortCause;
+
+		transport.close();
+
+		// Deliver what was read before the link went away
+		synchronized (framer) {
+			timeoutArmed = false;
+			wheel.cancel(frameTimeout);
+			framer.flush(this);
+		}
+
+		if (cadenceChanged)
+			reportTimeout();
+
+		listener.onDisconnected(this, cause);
+	}
+
+	/** Closes the transport; {@link #run()} delivers what it has and ends. */
+	public void cancel() {
+		run = false;
+		transport.close();
+	}
+
+	/**
+	 * Ends a link that is broken without the transport knowing, like
+	 * {@link #cancel()} but reported as a failure.
+	 */
+	public void abort(IOException cause) {
+		abortCause = cause;
+		cancel();
+	}
+
+	/** Hands over the frame so far if it grew and the last preview is old enough. */
+	private void preview(long now) {
+		int length = framer.partialLength();
+		if (length <= previewLength || now - previewAt < cadence.timeout())
+			return;
+
+		previewAt = now;
+		previewLength = length;
+		listener.onPartial(this, decoder.decodePartial(framer.partial(), length));
+	}
+
+	private void reportTimeout() {
+		long timeout;
+		synchronized (framer) {
+			timeout = cadence.timeout();
+			savedAt = cadence.samples();
+			cadenceChanged = false;
+		}
+		listener.onTimeoutLearned(this, timeout);
+	}
+
+	/**
+	 * Decodes, validates and transforms the frame here on the reader thread,
+	 * so the receiver only has to commit the result. The check digit is
+	 * verified on the barcode as scanned, before any transform touches it.
+	 */
+	@Override
+	public void onFrame(byte[] frame, int length) {
+		frameCompletedAt = System.nanoTime();
+		// Frames after the first in a read started with that read
+		if (frameStartedAt == 0)
+			frameStartedAt = readAt;
+		previewLength = 0;
+
+		CharBuffer chars = decoder.decodeToBuffer(frame, length);
+		if (heartbeat != null && heartbeat.contentEquals(chars))
+			lastHeartbeatAt = now();
+		else if (!validator.accept(chars)) {
+			if (counters != null)
+				counters.increment(ScanCounters.REJECTED);
+			Tracer.trace(Tracer.DEBUG, TRACE_REJECT, length, 0);
+			listener.onRejected(this, chars);
+		}
+		else {
+			Tracer.trace(Tracer.DEBUG, TRACE_FRAME, length, 0);
+			listener.onBarcode(this, transform.apply(chars, transformed));
+		}
+		frameStartedAt = 0;
+	}
+
+	/**
+	 * Fires once per partial frame. Bytes that keep arriving push the deadline
+	 * out instead of being cut off. The one instance is rescheduled for every
+	 * partial frame of the connection.
+	 */
+	private class FrameTimeout extends TimerWheel.Task {
+		private final Runnable flush = new Runnable() {
+			@Override
+			public void run() {
+				flushTimedOut();
+			}
+		};
+
+		@Override
+		public void run() {
+			// Delivering may block on the listener; the wheel thread must not
+			delivery.execute(flush);
+		}
+
+		private void flushTimedOut() {
+			synchronized (framer) {
+				// Cancelled while the wheel was firing it
+				if (!timeoutArmed)
+					return;
+
+				long idle = now() - lastByteAt;
+				long timeout = cadence.timeout();
+				if (framer.pending() > 0 && idle < timeout && run) {
+					wheel.schedule(this, timeout - idle);
+					return;
+				}
+				timeoutArmed = false;
+				framer.flush(FrameReader.this);
+			}
+		}
+	}
+
+	public static class Builder {
+		private final BarcodeTransport transport;
+		private final Listener listener;
+		private int terminators = BarcodeFramer.TERMINATORS_DEFAULT;
+		private int capacity = BarcodeFramer.DEFAULT_CAPACITY;
+		private CadenceEstimator cadence;
+		private Charset charset = FrameDecoder.DEFAULT_CHARSET;
+		private BarcodeValidator.Policy validation = BarcodeValidator.Policy.FLAG;
+		private TransformPipeline transform = TransformPipeline.DEFAULT;
+		private TimerWheel wheel;
+		private Executor delivery;
+		private String heartbeat;
+		private long heartbeatInterval;
+		private long silenceLimit = DEFAULT_SILENCE_LIMIT;
+		private boolean preview = false;
+		private ScanCounters counters;
+
+		public Builder(BarcodeTransport transport, Listener listener) {
+			this.transport = transport;
+			this.listener = listener;
+		}
+
+		/** The BarcodeFramer.TERMINATOR_* bits ending a frame, 0 for none. */
+		public Builder terminators(int terminators) {
+			this.terminators = terminators;
+			return this;
+		}
+
+		/** Longest frame in bytes. */
+		public Builder capacity(int capacity) {
+			this.capacity = capacity;
+			return this;
+		}
+
+		/** Learns the inter-byte timeout, starting from {@code initial} ms. */
+		public Builder frameTimeout(long initial) {
+			this.cadence = new CadenceEstimator(initial);
+			return this;
+		}
+
+		/** Uses {@code timeout} ms between bytes and never learns. */
+		public Builder fixedFrameTimeout(long timeout) {
+			this.cadence = new CadenceEstimator(timeout, timeout, timeout);
+			return this;
+		}
+
+		public Builder charset(Charset charset) {
+			this.charset = charset;
+			return this;
+		}
+
+		public Builder validation(BarcodeValidator.Policy validation) {
+			this.validation = validation;
+			return this;
+		}
+
+		public Builder transform(TransformPipeline transform) {
+			this.transform = transform;
+			return this;
+		}
+
+		/** Defaults to {@link TimerWheel#shared()}. */
+		public Builder wheel(TimerWheel wheel) {
+			this.wheel = wheel;
+			return this;
+		}
+
+		/**
+		 * Where frames ended by the timeout are delivered, one at a time.
+		 * By default a thread shared by all readers.
+		 */
+		public Builder delivery(Executor delivery) {
+			this.delivery = delivery;
+			return this;
+		}
+
+		/**
+		 * The frame, as sent and without terminator, that the scanner sends
+		 * to say it is alive. It is never delivered as a barcode.
+		 */
+		public Builder heartbeat(String heartbeat) {
+			this.heartbeat = heartbeat != null && heartbeat.length() > 0 ? heartbeat : null;
+			return this;
+		}
+
+		/** Hands over frames while they arrive, see {@link Listener#onPartial}. */
+		public Builder preview(boolean preview) {
+			this.preview = preview;
+			return this;
+		}
+
+		/** Where bytes read and rejected frames are counted, may be null. */
+		public Builder counters(ScanCounters counters) {
+			this.counters = counters;
+			return this;
+		}
+
+		/**
+		 * ms between the scanner's heartbeats, 0 if unknown. Unless a
+		 * silence limit is set, it enables one of
+		 * {@link #SILENCE_HEARTBEATS} intervals.
+		 */
+		public Builder heartbeatInterval(long heartbeatInterval) {
+			this.heartbeatInterval = heartbeatInterval;
+			return this;
+		}
+
+		/** Silence in ms after which the watchdog ends the link, 0 for never. */
+		public Builder silenceLimit(long silenceLimit) {
+			this.silenceLimit = silenceLimit;
+			return this;
+		}
+
+		public FrameReader build() {
+			return new FrameReader(this);
+		}
+	}
+}
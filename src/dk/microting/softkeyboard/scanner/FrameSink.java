@@ -0,0 +1,27 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * Receives the frames cut by a {@link BarcodeFramer}.
+ *
+ * The array handed to {@link #onFrame(byte[], int)} is owned by the framer
+ * and reused for the next frame, so implementations must copy or decode the
+ * bytes before they return.
+ */
+public interface FrameSink {
+
+	void onFrame(byte[] frame, int length);
+}
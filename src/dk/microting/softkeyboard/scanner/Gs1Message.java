@@ -0,0 +1,87 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * The application identifiers found in one GS1 barcode, filled by
+ * {@link Gs1Parser}.
+ *
+ * Elements are kept as offsets into the parsed text rather than as
+ * Strings, so an instance can be reused for every frame. The offsets are
+ * only valid while the parsed text is unchanged.
+ */
+public final class Gs1Message {
+
+	public static final int SSCC = 0;
+	public static final int GTIN = 1;
+	public static final int CONTENT = 2;
+	public static final int BATCH = 10;
+	public static final int PRODUCTION_DATE = 11;
+	public static final int BEST_BEFORE = 15;
+	public static final int EXPIRY = 17;
+	public static final int SERIAL = 21;
+	public static final int COUNT = 37;
+
+	static final int MAX_ELEMENTS = 32;
+
+	final int[] ai = new int[MAX_ELEMENTS];
+	final int[] start = new int[MAX_ELEMENTS];
+	final int[] end = new int[MAX_ELEMENTS];
+	int count = 0;
+	CharSequence text;
+
+	public int size() {
+		return count;
+	}
+
+	/** @return the application identifier of element {@code index} */
+	public int ai(int index) {
+		return ai[index];
+	}
+
+	/** @return the index of the first element with this AI, or -1 */
+	public int indexOf(int ai) {
+		for (int i = 0; i < count; i++)
+			if (this.ai[i] == ai)
+				return i;
+		return -1;
+	}
+
+	public boolean has(int ai) {
+		return indexOf(ai) >= 0;
+	}
+
+	/** Appends the data of the element with this AI, if present. */
+	public boolean appendTo(StringBuilder out, int ai) {
+		int index = indexOf(ai);
+		if (index < 0)
+			return false;
+		out.append(text, start[index], end[index]);
+		return true;
+	}
+
+	/** @return the data of the element with this AI, or null */
+	public String get(int ai) {
+		int index = indexOf(ai);
+		if (index < 0)
+			return null;
+		return text.subSequence(start[index], end[index]).toString();
+	}
+
+	void clear() {
+		count = 0;
+		text = null;
+	}
+}
@@ -0,0 +1,197 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * Splits a GS1-128, GS1 DataMatrix or GS1 QR frame into its application
+ * identifiers in a single pass, without regex or intermediate Strings.
+ *
+ * Variable length elements end at a GS (0x1D, the transmitted FNC1) or at
+ * the end of the frame. A frame is only taken as GS1 if it starts with a
+ * GS1 symbology identifier (]C1, ]d2, ]Q3, ]e0, ]J1) or contains a GS, so
+ * a plain EAN-13 starting with 10 is not read as a batch number. The
+ * identifier and a leading GS are skipped. The lengths come from a table keyed
+ * by the first two or three digits of the AI, following the GS1 General
+ * Specifications.
+ */
+public final class Gs1Parser {
+
+	public static final char GS = 0x1D;
+
+	private static final int VARIABLE = 0x80;
+
+	// Packed as aiLength << 8 | VARIABLE? | dataLength (maximum if variable)
+	private static final int[] BY_TWO = new int[100];
+	private static final int[] BY_THREE = new int[1000];
+
+	// Only the AIs with a predefined length (00-04, 11-20, 31-36, 41) are
+	// fixed; every other element is ended by GS even if its length is fixed
+	private static final String[] TABLE = {
+		// prefix, AI length, data length (negative when variable)
+		"00 2 18", "01 2 14", "02 2 14", "03 2 14", "04 2 16",
+		"10 2 -20", "11 2 6", "12 2 6", "13 2 6", "14 2 6", "15 2 6",
+		"16 2 6", "17 2 6", "18 2 6", "19 2 6", "20 2 2", "21 2 -20",
+		"22 2 -20",
+		"235 3 -28", "240 3 -30", "241 3 -30", "242 3 -6", "243 3 -20",
+		"250 3 -30", "251 3 -30", "253 3 -30", "254 3 -20", "255 3 -25",
+		"30 2 -8", "31 4 6", "32 4 6", "33 4 6", "34 4 6", "35 4 6",
+		"36 4 6", "37 2 -8", "39 4 -15", "391 4 -18", "393 4 -18",
+		"394 4 -4", "395 4 -6",
+		"40 3 -30", "402 3 -17", "41 3 13", "420 3 -20", "421 3 -12",
+		"422 3 -3", "423 3 -15", "424 3 -3", "425 3 -15", "426 3 -3",
+		"427 3 -3", "70 4 -30", "710 3 -20", "711 3 -20", "712 3 -20",
+		"713 3 -20", "714 3 -20", "715 3 -20", "80 4 -30", "90 2 -30",
+		"91 2 -90", "92 2 -90", "93 2 -90", "94 2 -90", "95 2 -90",
+		"96 2 -90", "97 2 -90", "98 2 -90", "99 2 -90",
+	};
+
+
+	static {
+		for (String entry : TABLE) {
+			String[] parts = entry.split(" ");
+			int aiLength = Integer.parseInt(parts[1]);
+			int dataLength = Integer.parseInt(parts[2]);
+			int packed = aiLength << 8 | (dataLength < 0 ? VARIABLE | -dataLength : dataLength);
+
+			int prefix = Integer.parseInt(parts[0]);
+			if (parts[0].length() == 2)
+				BY_TWO[prefix] = packed;
+			else
+				BY_THREE[prefix] = packed;
+		}
+	}
+
+	private Gs1Parser() {
+	}
+
+	/**
+	 * Parses {@code text} into {@code message}.
+	 *
+	 * @return false if the text is not a well formed GS1 element string, or
+	 *         carries neither a GS1 identifier nor a GS, in which case the
+	 *         message is left empty
+	 */
+	public static boolean parse(CharSequence text, Gs1Message message) {
+		message.clear();
+
+		final int length = text.length();
+		int pos = 0;
+		boolean symbology = false;
+
+		if (length >= 3 && text.charAt(0) == ']') {
+			symbology = isGs1Identifier(text.charAt(1), text.charAt(2));
+			if (!symbology)
+				return false;
+			pos = 3;
+		} else if (!containsGs(text, length)) {
+			return false;
+		}
+
+		while (pos < length) {
+			if (text.charAt(pos) == GS) {
+				pos++;
+				continue;
+			}
+
+			if (pos + 2 > length)
+				return fail(message);
+			int spec = lookup(text, pos, length);
+			if (spec == 0)
+				return fail(message);
+
+			int aiLength = spec >> 8;
+			int ai = digits(text, pos, aiLength);
+			if (ai < 0 || message.count == Gs1Message.MAX_ELEMENTS)
+				return fail(message);
+			pos += aiLength;
+
+			int dataLength = spec & 0x7F;
+			int end;
+			if ((spec & VARIABLE) != 0) {
+				int max = Math.min(length, pos + dataLength);
+				end = pos;
+				while (end < max && text.charAt(end) != GS)
+					end++;
+				if (end == pos)
+					return fail(message);
+			} else {
+				end = pos + dataLength;
+				if (end > length)
+					return fail(message);
+			}
+
+			int index = message.count++;
+			message.ai[index] = ai;
+			message.start[index] = pos;
+			message.end[index] = end;
+			pos = end;
+		}
+
+		if (message.count == 0)
+			return fail(message);
+
+		message.text = text;
+		return true;
+	}
+
+	private static boolean isGs1Identifier(char symbology, char modifier) {
+		switch (symbology) {
+		case 'C': return modifier == '1';
+		case 'd': return modifier == '2';
+		case 'Q': return modifier == '3';
+		case 'e': return modifier == '0';
+		case 'J': return modifier == '1';
+		default: return false;
+		}
+	}
+
+	private static boolean containsGs(CharSequence text, int length) {
+		for (int i = 0; i < length; i++) {
+			if (text.charAt(i) == GS)
+				return true;
+		}
+		return false;
+	}
+
+	private static int lookup(CharSequence text, int pos, int length) {
+		int two = digits(text, pos, 2);
+		if (two < 0)
+			return 0;
+		if (pos + 3 <= length) {
+			int three = digits(text, pos, 3);
+			if (three >= 0 && BY_THREE[three] != 0)
+				return BY_THREE[three];
+		}
+		return BY_TWO[two];
+	}
+
+	private static int digits(CharSequence text, int pos, int count) {
+		if (pos + count > text.length())
+			return -1;
+		int value = 0;
+		for (int i = pos; i < pos + count; i++) {
+			char c = text.charAt(i);
+			if (c < '0' || c > '9')
+				return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value;
+	}
+
+	private static boolean fail(Gs1Message message) {
+		message.clear();
+		return false;
+	}
+}
@@ -0,0 +1,147 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram cheap enough to leave on: fixed log-linear buckets
+ * in microseconds, 16 per power of two, so any value is known within
+ * 6.25% from 1 us up to about nine hours. Recording is a few atomic adds
+ * and never allocates; any thread may record and read at the same time.
+ *
+ * Reads are not a consistent snapshot, a percentile taken while values
+ * are recorded may miss the newest ones.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BITS = 4;
+	private static final int SUB = 1 << SUB_BITS;
+	// Values from 2^MAX_EXPONENT us on share the last bucket
+	private static final int MAX_EXPONENT = 35;
+	private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	/** @param nanos the latency, negative values count as 0 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+
+		counts.incrementAndGet(bucket(nanos / 1000));
+		count.incrementAndGet();
+		sum.addAndGet(nanos);
+
+		long current;
+		while (nanos > (current = max.get())) {
+			if (max.compareAndSet(current, nanos))
+				break;
+		}
+	}
+
+	public long count() {
+		return count.get();
+	}
+
+	/** @return the largest value recorded, in ns */
+	public long max() {
+		return max.get();
+	}
+
+	/** @return the mean in ns, 0 if empty */
+	public long mean() {
+		long n = count.get();
+		return n == 0 ? 0 : sum.get() / n;
+	}
+
+	/**
+	 * @param fraction between 0 and 1, e.g. 0.99
+	 * @return an upper bound in ns for that fraction of the values, 0 if empty
+	 */
+	public long percentile(double fraction) {
+		long n = count.get();
+		if (n == 0)
+			return 0;
+
+		long target = (long) Math.ceil(fraction * n);
+		if (target < 1)
+			target = 1;
+
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(upperBound(i) * 1000, max.get());
+		}
+		return max.get();
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+
+	/** Appends count, p50, p95, p99 and max in ms. */
+	public StringBuilder appendTo(StringBuilder sb) {
+		sb.append("n=").append(count());
+		appendMillis(sb.append(" p50="), percentile(0.50));
+		appendMillis(sb.append(" p95="), percentile(0.95));
+		appendMillis(sb.append(" p99="), percentile(0.99));
+		appendMillis(sb.append(" max="), max());
+		return sb;
+	}
+
+	@Override
+	public String toString() {
+		return appendTo(new StringBuilder()).toString();
+	}
+
+	private static void appendMillis(StringBuilder sb, long nanos) {
+		long micros = nanos / 1000;
+		sb.append(micros / 1000).append('.');
+		long fraction = micros % 1000 / 10;
+		if (fraction < 10)
+			sb.append('0');
+		sb.append(fraction);
+	}
+
+	static int bucket(long micros) {
+		if (micros < SUB)
+			return (int) micros;
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if (exponent > MAX_EXPONENT)
+			return BUCKETS - 1;
+		int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB - 1);
+		return (exponent - SUB_BITS + 1) * SUB + sub;
+	}
+
+	/** @return the first value in us above bucket {@code index} */
+	static long upperBound(int index) {
+		if (index < SUB)
+			return index + 1;
+
+		int exponent = index / SUB + SUB_BITS - 1;
+		int sub = index % SUB;
+		return (long) (SUB + sub + 1) << (exponent - SUB_BITS);
+	}
+}
@@ -0,0 +1,221 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters, gauges and distributions, registered once at start up
+ * and updated lock free from any thread. The registry renders them as text
+ * for dumpsys and as a compact binary record for collection.
+ *
+ * A snapshot record is:
+ *
+ * <pre>
+ * int   magic 'SKM1'
+ * long  wall clock time in ms
+ * short number of metrics
+ * per metric: UTF name, byte type, then
+ *   counter, gauge: long value
+ *   distribution:   long count, long sum, long max
+ * </pre>
+ */
+public final class MetricsRegistry {
+
+	public static final int SNAPSHOT_MAGIC = 0x534B4D31;
+
+	private static final byte COUNTER = 0;
+	private static final byte GAUGE = 1;
+	private static final byte DISTRIBUTION = 2;
+
+	/** A value that only goes up. */
+	public static final class Counter {
+		private final AtomicLong value = new AtomicLong();
+
+		public void increment() {
+			value.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+	}
+
+	/** A value read when the registry is rendered. */
+	public interface Gauge {
+		long value();
+	}
+
+	/** Count, sum and max of recorded values, e.g. batch sizes. */
+	public static final class Distribution {
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long current;
+			while (value > (current = max.get())) {
+				if (max.compareAndSet(current, value))
+					break;
+			}
+		}
+
+		public long count() {
+			return count.get();
+		}
+
+		public long sum() {
+			return sum.get();
+		}
+
+		public long max() {
+			return max.get();
+		}
+	}
+
+	private static final class Entry {
+		final String name;
+		final byte type;
+		final Object metric;
+
+		Entry(String name, byte type, Object metric) {
+			this.name = name;
+			this.type = type;
+			this.metric = metric;
+		}
+	}
+
+	private final CopyOnWriteArrayList<Entry> entries = new CopyOnWriteArrayList<Entry>();
+
+	public Counter counter(String name) {
+		Counter counter = new Counter();
+		add(new Entry(name, COUNTER, counter));
+		return counter;
+	}
+
+	public void gauge(String name, Gauge gauge) {
+		add(new Entry(name, GAUGE, gauge));
+	}
+
+	public Distribution distribution(String name) {
+		return register(name, new Distribution());
+	}
+
+	/** Registers a distribution owned by someone else. */
+	public Distribution register(String name, Distribution distribution) {
+		add(new Entry(name, DISTRIBUTION, distribution));
+		return distribution;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/** Writes one line per metric. */
+	public void dump(PrintWriter out, String prefix) {
+		for (Entry entry : entries) {
+			out.print(prefix);
+			out.print(entry.name);
+			out.print('=');
+			switch (entry.type) {
+			case COUNTER:
+				out.println(((Counter) entry.metric).get());
+				break;
+			case GAUGE:
+				out.println(((Gauge) entry.metric).value());
+				break;
+			default:
+				Distribution d = (Distribution) entry.metric;
+				long count = d.count();
+				out.print(count);
+				out.print(" mean=");
+				out.print(count == 0 ? 0 : d.sum() / count);
+				out.print(" max=");
+				out.println(d.max());
+			}
+		}
+	}
+
+	public void writeSnapshot(DataOutput out, long wallTime) throws IOException {
+		Entry[] snapshot = entries.toArray(new Entry[0]);
+		out.writeInt(SNAPSHOT_MAGIC);
+		out.writeLong(wallTime);
+		out.writeShort(snapshot.length);
+		for (Entry entry : snapshot) {
+			out.writeUTF(entry.name);
+			out.writeByte(entry.type);
+			switch (entry.type) {
+			case COUNTER:
+				out.writeLong(((Counter) entry.metric).get());
+				break;
+			case GAUGE:
+				out.writeLong(((Gauge) entry.metric).value());
+				break;
+			default:
+				Distribution d = (Distribution) entry.metric;
+				out.writeLong(d.count());
+				out.writeLong(d.sum());
+				out.writeLong(d.max());
+			}
+		}
+	}
+
+	/**
+	 * Reads a record written by {@link #writeSnapshot}, for collectors.
+	 *
+	 * @param time receives the wall clock time of the record
+	 * @return the values by name; a distribution has count, sum and max
+	 */
+	public static Map<String, long[]> readSnapshot(DataInput in, long[] time) throws IOException {
+		if (in.readInt() != SNAPSHOT_MAGIC)
+			throw new IOException("Not a metrics snapshot");
+		time[0] = in.readLong();
+
+		int count = in.readUnsignedShort();
+		Map<String, long[]> values = new LinkedHashMap<String, long[]>();
+		for (int i = 0; i < count; i++) {
+			String name = in.readUTF();
+			byte type = in.readByte();
+			if (type == DISTRIBUTION)
+				values.put(name, new long[] { in.readLong(), in.readLong(), in.readLong() });
+			else if (type == COUNTER || type == GAUGE)
+				values.put(name, new long[] { in.readLong() });
+			else
+				throw new IOException("Unknown metric type " + type + " for " + name);
+		}
+		return values;
+	}
+
+	private void add(Entry entry) {
+		for (Entry existing : entries) {
+			if (existing.name.equals(entry.name))
+				throw new IllegalArgumentException("Metric registered twice: " + entry.name);
+		}
+		entries.add(entry);
+	}
+}
@@ -0,0 +1,118 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Appends a snapshot of a {@link MetricsRegistry} to a file at a fixed
+ * interval, so performance data can be collected from devices without a
+ * debugger. Each record is prefixed with its length as an int. When the
+ * file passes its size limit it is renamed to ".old" and a new one is
+ * started, so at most two files are kept.
+ *
+ * Runs on the {@link TimerWheel}; a record is a few hundred bytes.
+ */
+public final class MetricsSnapshotter extends TimerWheel.Task {
+
+	public static final long DEFAULT_INTERVAL = 60 * 1000;
+	public static final long DEFAULT_MAX_BYTES = 256 * 1024;
+
+	private final MetricsRegistry registry;
+	private final File file;
+	private final File old;
+	private final long interval;
+	private final long maxBytes;
+	private final TimerWheel wheel;
+
+	// Wheel thread only
+	private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+	private final DataOutputStream record = new DataOutputStream(bytes);
+
+	private volatile boolean running = false;
+	private volatile long written = 0;
+	private volatile long errors = 0;
+
+	public MetricsSnapshotter(MetricsRegistry registry, File file, TimerWheel wheel) {
+		this(registry, file, wheel, DEFAULT_INTERVAL, DEFAULT_MAX_BYTES);
+	}
+
+	public MetricsSnapshotter(MetricsRegistry registry, File file, TimerWheel wheel, long interval, long maxBytes) {
+		this.registry = registry;
+		this.file = file;
+		this.old = new File(file.getPath() + ".old");
+		this.wheel = wheel;
+		this.interval = interval;
+		this.maxBytes = maxBytes;
+	}
+
+	public void start() {
+		running = true;
+		wheel.schedule(this, interval);
+	}
+
+	/** Stops the schedule and writes a last record. */
+	public void stop() {
+		running = false;
+		wheel.cancel(this);
+		write();
+	}
+
+	public long written() {
+		return written;
+	}
+
+	public long errors() {
+		return errors;
+	}
+
+	@Override
+	public void run() {
+		if (!running)
+			return;
+		write();
+		wheel.schedule(this, interval);
+	}
+
+	private synchronized void write() {
+		try {
+			bytes.reset();
+			registry.writeSnapshot(record, System.currentTimeMillis());
+			record.flush();
+
+			if (file.length() + bytes.size() + 4 > maxBytes) {
+				old.delete();
+				file.renameTo(old);
+			}
+
+			FileOutputStream out = new FileOutputStream(file, true);
+			try {
+				DataOutputStream data = new DataOutputStream(out);
+				data.writeInt(bytes.size());
+				bytes.writeTo(data);
+				data.flush();
+			} finally {
+				out.close();
+			}
+			written++;
+		} catch (IOException e) {
+			errors++;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * An in-memory scanner: whatever is written on one side is read by the
+ * {@link FrameReader} on the other, so the whole ingest path runs without
+ * a device, on a plain JVM.
+ *
+ * The bytes go through a bounded ring; a writer faster than the reader
+ * blocks like a scanner whose link is saturated. The writer can end the
+ * stream cleanly with {@link #hangUp()} or break it with
+ * {@link #fail(IOException)}, the way a scanner walking out of range does.
+ */
+public class PipedTransport implements BarcodeTransport {
+
+	public static final int DEFAULT_CAPACITY = 64 * 1024;
+
+	private final String address;
+	private final byte[] ring;
+
+	// Guarded by this
+	private long written = 0;
+	private long read = 0;
+	private boolean opened = false;
+	private boolean closed = false;
+	private boolean hungUp = false;
+	private IOException failure;
+
+	public PipedTransport(String address) {
+		this(address, DEFAULT_CAPACITY);
+	}
+
+	public PipedTransport(String address, int capacity) {
+		if (capacity <= 0)
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		this.address = address;
+		this.ring = new byte[capacity];
+	}
+
+	@Override
+	public synchronized void open() throws IOException {
+		if (closed)
+			throw new IOException("Transport closed");
+		if (failure != null)
+			throw failure;
+		opened = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int offset, int length) throws IOException {
+		while (written == read && !closed && !hungUp && failure == null)
+			await();
+
+		if (closed)
+			throw new IOException("Transport closed");
+		if (failure != null)
+			throw failure;
+		if (written == read)
+			return -1;
+
+		int n = (int) Math.min(length, written - read);
+		int start = (int) (read % ring.length);
+		int first = Math.min(n, ring.length - start);
+		System.arraycopy(ring, start, buffer, offset, first);
+		System.arraycopy(ring, 0, buffer, offset + first, n - first);
+		read += n;
+		notifyAll();
+		return n;
+	}
+
+	/** Writes all of {@code bytes}, waiting for the reader while the ring is full. */
+	public void write(byte[] bytes) throws IOException {
+		write(bytes, 0, bytes.length);
+	}
+
+	public synchronized void write(byte[] bytes, int offset, int length) throws IOException {
+		while (length > 0) {
+			while (written - read == ring.length && !closed && !hungUp && failure == null)
+				await();
+			if (closed)
+				throw new IOException("Reader closed the transport");
+			if (hungUp || failure != null)
+				throw new IOException("Transport already ended");
+
+			int start = (int) (written % ring.length);
+			int n = (int) Math.min(length, ring.length - (written - read));
+			n = Math.min(n, ring.length - start);
+			System.arraycopy(bytes, offset, ring, start, n);
+			written += n;
+			offset += n;
+			length -= n;
+			notifyAll();
+		}
+	}
+
+	/** Ends the stream; the reader gets what was written, then the end. */
+	public synchronized void hangUp() {
+		hungUp = true;
+		notifyAll();
+	}
+
+	/**
+	 * Breaks the link: the next read throws {@code cause}, losing what was
+	 * written but not yet read. If the transport was not opened yet,
+	 * opening it fails instead.
+	 */
+	public synchronized void fail(IOException cause) {
+		failure = cause;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized boolean isHealthy() {
+		return opened && !closed && !hungUp && failure == null;
+	}
+
+	/** @return bytes written but not read yet */
+	public synchronized int available() {
+		return (int) (written - read);
+	}
+
+	@Override
+	public String getAddress() {
+		return address;
+	}
+
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted waiting on " + address);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Ends links that went quiet. A scanner walking out of range does not
+ * always make its socket fail; the read just blocks forever. Every
+ * interval the watchdog looks at the readers it watches and aborts those
+ * whose transport reports itself unhealthy, or that have shown no sign of
+ * life, bytes or heartbeat, for longer than their silence limit. The
+ * reader then ends with a failure, which sends its link into reconnect.
+ *
+ * The checks run on the {@link TimerWheel}, so watching adds no thread.
+ */
+public final class ReaderWatchdog extends TimerWheel.Task {
+
+	public static final long DEFAULT_INTERVAL = 1000;
+
+	private static ReaderWatchdog shared;
+
+	private final TimerWheel wheel;
+	private final long interval;
+	private final CopyOnWriteArrayList<FrameReader> readers = new CopyOnWriteArrayList<FrameReader>();
+	private final AtomicLong stalls = new AtomicLong();
+
+	public ReaderWatchdog(TimerWheel wheel, long interval) {
+		if (interval <= 0)
+			throw new IllegalArgumentException("interval must be positive: " + interval);
+		this.wheel = wheel;
+		this.interval = interval;
+	}
+
+	/** @return the process wide watchdog, checking every second on the shared wheel */
+	public static synchronized ReaderWatchdog shared() {
+		if (shared == null)
+			shared = new ReaderWatchdog(TimerWheel.shared(), DEFAULT_INTERVAL);
+		return shared;
+	}
+
+	/** Stops the process wide watchdog; the next {@link #shared()} makes a new one. */
+	public static synchronized void stopShared() {
+		if (shared != null) {
+			shared.stop();
+			shared = null;
+		}
+	}
+
+	/** Forgets every reader and takes the check off the wheel. */
+	public void stop() {
+		readers.clear();
+		wheel.cancel(this);
+	}
+
+	/** Starts watching a connected reader. */
+	public void watch(FrameReader reader) {
+		readers.addIfAbsent(reader);
+		wheel.schedule(this, interval);
+	}
+
+	public void unwatch(FrameReader reader) {
+		readers.remove(reader);
+	}
+
+	/** @return links aborted for silence or ill health */
+	public long stalls() {
+		return stalls.get();
+	}
+
+	@Override
+	public void run() {
+		long now = FrameReader.now();
+		for (FrameReader reader : readers) {
+			String reason = null;
+			long limit = reader.getSilenceLimit();
+			long silent = now - reader.getLastActivityAt();
+			if (!reader.getTransport().isHealthy())
+				reason = "Transport unhealthy";
+			else if (limit > 0 && silent > limit)
+				reason = "Silent for " + silent + " ms";
+
+			if (reason != null) {
+				readers.remove(reader);
+				stalls.incrementAndGet();
+				reader.abort(new IOException(reason));
+			}
+		}
+
+		if (!readers.isEmpty())
+			wheel.schedule(this, interval);
+	}
+}
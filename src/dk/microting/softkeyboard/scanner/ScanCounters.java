@@ -0,0 +1,103 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * What happened to the scans of one scanner, and how long they took. Every
+ * frame carries the counters of its source, so the reader, the dispatch
+ * queue and the committer count without looking the device up.
+ *
+ * Lock free; a snapshot taken while scans flow may be off by the scans in
+ * flight.
+ */
+public final class ScanCounters {
+
+	/** Frames handed over by the reader. */
+	public static final int RECEIVED = 0;
+	/** Suppressed within the duplicate window. */
+	public static final int DUPLICATES = 1;
+	/** Lost to a full dispatch queue. */
+	public static final int DROPPED = 2;
+	/** Accepted by an editor. */
+	public static final int COMMITTED = 3;
+	/** Put aside because no editor took them. */
+	public static final int DEFERRED = 4;
+	/** Failed their check digit. */
+	public static final int REJECTED = 5;
+	/** Bytes read from the scanner. */
+	public static final int BYTES = 6;
+	/** Times the link came up. */
+	public static final int CONNECTS = 7;
+
+	private static final String[] NAMES = { "received", "duplicates", "dropped", "committed", "deferred", "rejected", "bytes", "connects" };
+
+	private final String device;
+	private final AtomicLongArray counts = new AtomicLongArray(NAMES.length);
+	private final AtomicLongArray validation = BarcodeValidator.newCounts();
+	private final ScanLatency latency;
+
+	public ScanCounters(String device) {
+		this.device = device;
+		this.latency = new ScanLatency(device);
+	}
+
+	/** @return the latency of the scans of this scanner that were committed */
+	public ScanLatency getLatency() {
+		return latency;
+	}
+
+	/**
+	 * @return the validation results per symbology, counted by the
+	 *         {@link BarcodeValidator} of every connection, see
+	 *         {@link BarcodeValidator#valid(AtomicLongArray, int)}
+	 */
+	public AtomicLongArray getValidation() {
+		return validation;
+	}
+
+	public String getDevice() {
+		return device;
+	}
+
+	public void increment(int counter) {
+		counts.incrementAndGet(counter);
+	}
+
+	public void add(int counter, long delta) {
+		counts.addAndGet(counter, delta);
+	}
+
+	public long get(int counter) {
+		return counts.get(counter);
+	}
+
+	public static String name(int counter) {
+		return NAMES[counter];
+	}
+
+	public static int size() {
+		return NAMES.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(device);
+		for (int i = 0; i < NAMES.length; i++)
+			sb.append(' ').append(NAMES[i]).append('=').append(counts.get(i));
+		return sb.toString();
+	}
+}
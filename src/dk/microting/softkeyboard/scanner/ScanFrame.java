@@ -0,0 +1,59 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * A decoded barcode on its way from a scanner link to the editor.
+ *
+ * Instances are preallocated and reused: queues copy the fields in and out
+ * with {@link #set(ScanFrame)} instead of passing the object along.
+ */
+public final class ScanFrame {
+
+	/** The barcode text. */
+	public String text;
+	/** Address of the scanner that read it. */
+	public String device;
+	/** When the frame was completed, SystemClock.uptimeMillis() time base. */
+	public long receivedAt;
+	/** Where the frame is journaled, -1 if it is not. */
+	public long journalPosition = -1;
+	/** System.nanoTime() of the read that brought its first byte, 0 if unknown. */
+	public long firstByteAt;
+	/** System.nanoTime() when the frame was complete, 0 if unknown. */
+	public long completedAt;
+	/** Counters of the scanner that read it, may be null. */
+	public ScanCounters counters;
+
+	public void set(ScanFrame other) {
+		this.text = other.text;
+		this.device = other.device;
+		this.receivedAt = other.receivedAt;
+		this.journalPosition = other.journalPosition;
+		this.firstByteAt = other.firstByteAt;
+		this.completedAt = other.completedAt;
+		this.counters = other.counters;
+	}
+
+	public void clear() {
+		this.text = null;
+		this.device = null;
+		this.receivedAt = 0;
+		this.journalPosition = -1;
+		this.firstByteAt = 0;
+		this.completedAt = 0;
+		this.counters = null;
+	}
+}
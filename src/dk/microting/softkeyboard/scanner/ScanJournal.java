@@ -0,0 +1,367 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only journal of every decoded scan, so a scan survives the editor
+ * going away or the process being killed before it was committed.
+ *
+ * The journal is a set of fixed size segment files that are memory mapped.
+ * Appending a record is a few puts into the mapping with no fsync; the
+ * kernel writes the pages back on its own, and they survive the process
+ * dying. When a segment is full the next one is started, and segments
+ * beyond the configured count are deleted oldest first, which bounds the
+ * space used.
+ *
+ * Each record carries a sequence number, the wall clock time, the device
+ * address, a delivery status and the text. Strings are stored as UTF-16
+ * chars so appending does not have to encode them. The status byte is
+ * updated in place once the scan has been committed.
+ *
+ * The segment files are opened on the first call that needs them, never
+ * in the constructor. All methods are synchronized.
+ *
+ * Records still pending from an earlier run of the process can be read
+ * back with {@link #readPending(Visitor)}.
+ */
+public final class ScanJournal {
+
+	public static final byte PENDING = 0;
+	public static final byte DELIVERED = 1;
+	public static final byte DISCARDED = 2;
+
+	public static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+	public static final int DEFAULT_MAX_SEGMENTS = 4;
+
+	private static final int MAGIC = 0x53434a31; // "SCJ1"
+	private static final int SEGMENT_HEADER = 8;
+
+	// Record layout; the length is written last and marks the record complete
+	static final int LENGTH = 0;
+	static final int STATUS = 4;
+	static final int DEVICE_LENGTH = 5;
+	static final int TEXT_LENGTH = 6;
+	static final int SEQUENCE = 8;
+	static final int TIME = 16;
+	static final int RECORD_HEADER = 24;
+
+	/** Receives the records found by {@link ScanJournal#readPending(Visitor)}. */
+	public interface Visitor {
+		void visit(long position, long sequence, long time, String device, String text);
+	}
+
+	private static final String PREFIX = "scans-";
+	private static final String SUFFIX = ".seg";
+
+	private final File dir;
+	private final int segmentSize;
+	private final int maxSegments;
+
+	// Mappings of the live segments, slot = segment index % maxSegments
+	private final MappedByteBuffer[] mapped;
+	private final int[] mappedIndex;
+
+	private boolean opened = false;
+	private boolean failed = false;
+	private int segment;
+	private MappedByteBuffer current;
+	private int writeOffset;
+	private long sequence;
+	// Newest record written before this process opened the journal
+	private long recoveredSequence;
+
+	private long appended = 0;
+	private long errors = 0;
+
+	public ScanJournal(File dir) {
+		this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+	}
+
+	public ScanJournal(File dir, int segmentSize, int maxSegments) {
+		if (segmentSize <= SEGMENT_HEADER + RECORD_HEADER || maxSegments < 1)
+			throw new IllegalArgumentException("bad journal size " + segmentSize + " x " + maxSegments);
+
+		this.dir = dir;
+		this.segmentSize = segmentSize;
+		this.maxSegments = maxSegments;
+		this.mapped = new MappedByteBuffer[maxSegments];
+		this.mappedIndex = new int[maxSegments];
+	}
+
+	/**
+	 * Appends a pending record.
+	 *
+	 * @return the position of the record for {@link #mark(long, byte)}, or
+	 *         -1 if the journal is unavailable or the record is too large
+	 */
+	public synchronized long append(CharSequence text, CharSequence device, long time) {
+		if (!ensureOpen())
+			return -1;
+
+		final int deviceLength = device != null ? Math.min(device.length(), 0x7F) : 0;
+		final int textLength = text.length();
+		final int size = RECORD_HEADER + 2 * (deviceLength + textLength);
+		if (textLength > 0x7FFF || size > segmentSize - SEGMENT_HEADER) {
+			errors++;
+			return -1;
+		}
+
+		try {
+			if (writeOffset + size > segmentSize)
+				roll();
+		} catch (IOException e) {
+			fail();
+			return -1;
+		}
+
+		final MappedByteBuffer b = current;
+		final int at = writeOffset;
+		b.put(at + STATUS, PENDING);
+		b.put(at + DEVICE_LENGTH, (byte) deviceLength);
+		b.putShort(at + TEXT_LENGTH, (short) textLength);
+		b.putLong(at + SEQUENCE, ++sequence);
+		b.putLong(at + TIME, time);
+
+		int p = at + RECORD_HEADER;
+		for (int i = 0; i < deviceLength; i++, p += 2)
+			b.putChar(p, device.charAt(i));
+		for (int i = 0; i < textLength; i++, p += 2)
+			b.putChar(p, text.charAt(i));
+
+		b.putInt(at + LENGTH, size);
+		writeOffset += size;
+		appended++;
+
+		return (long) segment << 32 | at;
+	}
+
+	/** Updates the delivery status of the record at {@code position}. */
+	public synchronized void mark(long position, byte status) {
+		if (position < 0 || !ensureOpen())
+			return;
+
+		MappedByteBuffer b = segment((int) (position >>> 32));
+		if (b != null)
+			b.put((int) position + STATUS, status);
+	}
+
+	/**
+	 * Visits every record that is still {@link #PENDING} and was written
+	 * before this process opened the journal, oldest first. Records
+	 * appended since are tracked by whoever appended them. This reads all
+	 * segments and allocates the Strings, so call it off the main thread.
+	 *
+	 * @return the number of records visited
+	 */
+	public synchronized int readPending(Visitor visitor) {
+		if (!ensureOpen())
+			return 0;
+
+		int visited = 0;
+		char[] chars = new char[0];
+		for (int index : segments()) {
+			MappedByteBuffer b = index == segment ? current : segment(index);
+			if (b == null)
+				continue;
+
+			int at = SEGMENT_HEADER;
+			while (at + RECORD_HEADER <= segmentSize) {
+				int length = b.getInt(at + LENGTH);
+				if (length < RECORD_HEADER || at + length > segmentSize)
+					break;
+
+				long seq = b.getLong(at + SEQUENCE);
+				if (seq > recoveredSequence)
+					break;
+
+				if (b.get(at + STATUS) == PENDING) {
+					int deviceLength = b.get(at + DEVICE_LENGTH);
+					int textLength = b.getShort(at + TEXT_LENGTH);
+					if (chars.length < deviceLength + textLength)
+						chars = new char[deviceLength + textLength];
+
+					int p = at + RECORD_HEADER;
+					for (int i = 0; i < deviceLength + textLength; i++, p += 2)
+						chars[i] = b.getChar(p);
+
+					String device = deviceLength > 0 ? new String(chars, 0, deviceLength) : null;
+					String text = new String(chars, deviceLength, textLength);
+					visitor.visit((long) index << 32 | at, seq, b.getLong(at + TIME), device, text);
+					visited++;
+				}
+				at += length;
+			}
+		}
+		return visited;
+	}
+
+	/** @return the sequence number of the newest record */
+	public synchronized long lastSequence() {
+		ensureOpen();
+		return sequence;
+	}
+
+	public synchronized long appended() {
+		return appended;
+	}
+
+	/** @return appends that could not be journaled */
+	public synchronized long errors() {
+		return errors;
+	}
+
+	/** Writes the mapped pages back to storage, for example on shutdown. */
+	public synchronized void sync() {
+		if (current != null)
+			current.force();
+	}
+
+	private boolean ensureOpen() {
+		if (opened)
+			return !failed;
+		opened = true;
+
+		try {
+			if (!dir.isDirectory() && !dir.mkdirs())
+				throw new IOException("cannot create " + dir);
+
+			int[] segments = segments();
+			if (segments.length == 0) {
+				start(1);
+			} else {
+				// The newest sequence is in an older segment if the last
+				// one is empty or invalid, so every segment is looked at
+				for (int i = 0; i < segments.length - 1; i++) {
+					MappedByteBuffer b = segment(segments[i]);
+					if (b != null)
+						recover(b);
+				}
+				segment = segments[segments.length - 1];
+				current = segment(segment);
+				if (current != null)
+					writeOffset = recover(current);
+				else
+					start(segment + 1);
+			}
+		} catch (IOException e) {
+			fail();
+		}
+		recoveredSequence = sequence;
+		return !failed;
+	}
+
+	// Raises the sequence to the newest in the segment, returns its end
+	private int recover(MappedByteBuffer b) {
+		int at = SEGMENT_HEADER;
+		while (at + RECORD_HEADER <= segmentSize) {
+			int length = b.getInt(at + LENGTH);
+			if (length < RECORD_HEADER || at + length > segmentSize)
+				break;
+			sequence = Math.max(sequence, b.getLong(at + SEQUENCE));
+			at += length;
+		}
+		return at;
+	}
+
+	private void roll() throws IOException {
+		current.force();
+		start(segment + 1);
+		for (int old : segments())
+			if (old <= segment - maxSegments)
+				new File(dir, name(old)).delete();
+	}
+
+	private void start(int index) throws IOException {
+		segment = index;
+		current = map(index);
+		current.putInt(0, MAGIC);
+		current.putInt(4, segmentSize);
+		writeOffset = SEGMENT_HEADER;
+	}
+
+	private MappedByteBuffer segment(int index) {
+		int slot = index % maxSegments;
+		if (mapped[slot] != null && mappedIndex[slot] == index)
+			return mapped[slot];
+
+		File file = new File(dir, name(index));
+		if (!file.exists())
+			return null;
+		try {
+			MappedByteBuffer b = map(index);
+			return b.getInt(0) == MAGIC ? b : null;
+		} catch (IOException e) {
+			errors++;
+			return null;
+		}
+	}
+
+	private MappedByteBuffer map(int index) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(new File(dir, name(index)), "rw");
+		try {
+			file.setLength(segmentSize);
+			MappedByteBuffer b = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+			int slot = index % maxSegments;
+			mapped[slot] = b;
+			mappedIndex[slot] = index;
+			return b;
+		} finally {
+			// The mapping stays valid after the file is closed
+			file.close();
+		}
+	}
+
+	/** @return the indexes of the segment files on disk, oldest first */
+	int[] segments() {
+		String[] names = dir.list();
+		if (names == null)
+			return new int[0];
+
+		int[] found = new int[names.length];
+		int count = 0;
+		for (String name : names) {
+			if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX))
+				continue;
+			int index;
+			try {
+				index = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+			} catch (NumberFormatException e) {
+				// Not ours
+				continue;
+			}
+			found[count++] = index;
+		}
+		int[] segments = Arrays.copyOf(found, count);
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	private static String name(int index) {
+		return PREFIX + String.format("%08d", index) + SUFFIX;
+	}
+
+	private void fail() {
+		failed = true;
+		errors++;
+		current = null;
+	}
+}
@@ -0,0 +1,84 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+/**
+ * Where the time goes between a scanner sending a barcode and the editor
+ * having it, split at the four points every scan passes:
+ *
+ * <pre>
+ * first byte read --READ--> frame complete --DISPATCH--> dequeued on the
+ * main thread --COMMIT--> commitText returned
+ * </pre>
+ *
+ * TOTAL covers the whole way. All stamps are System.nanoTime().
+ */
+public final class ScanLatency {
+
+	/** First byte read to frame complete. */
+	public static final int READ = 0;
+	/** Frame complete to dequeued on the main thread. */
+	public static final int DISPATCH = 1;
+	/** Dequeued to commitText returned. */
+	public static final int COMMIT = 2;
+	/** First byte read to commitText returned. */
+	public static final int TOTAL = 3;
+
+	private static final String[] NAMES = { "read", "dispatch", "commit", "total" };
+
+	private final String name;
+	private final LatencyHistogram[] stages = new LatencyHistogram[NAMES.length];
+
+	public ScanLatency(String name) {
+		this.name = name;
+		for (int i = 0; i < stages.length; i++)
+			stages[i] = new LatencyHistogram();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/** Records one scan; a stamp of 0 skips the stages that need it. */
+	public void record(long firstByteAt, long completedAt, long dequeuedAt, long committedAt) {
+		if (firstByteAt != 0 && completedAt != 0)
+			stages[READ].record(completedAt - firstByteAt);
+		if (completedAt != 0)
+			stages[DISPATCH].record(dequeuedAt - completedAt);
+		stages[COMMIT].record(committedAt - dequeuedAt);
+		if (firstByteAt != 0)
+			stages[TOTAL].record(committedAt - firstByteAt);
+	}
+
+	public LatencyHistogram get(int stage) {
+		return stages[stage];
+	}
+
+	public static String name(int stage) {
+		return NAMES[stage];
+	}
+
+	public static int size() {
+		return NAMES.length;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(name);
+		for (int i = 0; i < stages.length; i++)
+			stages[i].appendTo(sb.append("\n  ").append(NAMES[i]).append(": "));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,89 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * A scanner behind a network gateway that forwards its bytes over TCP,
+ * by default on this device.
+ */
+public class TcpTransport implements BarcodeTransport {
+
+	public static final String LOCALHOST = "127.0.0.1";
+	public static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+	private final String host;
+	private final int port;
+	private final int connectTimeout;
+	private final Socket socket = new Socket();
+
+	private volatile InputStream in;
+	private volatile boolean closed = false;
+
+	public TcpTransport(int port) {
+		this(LOCALHOST, port, DEFAULT_CONNECT_TIMEOUT);
+	}
+
+	/** @param connectTimeout ms to wait for the gateway, 0 for no limit */
+	public TcpTransport(String host, int port, int connectTimeout) {
+		this.host = host;
+		this.port = port;
+		this.connectTimeout = connectTimeout;
+	}
+
+	@Override
+	public void open() throws IOException {
+		if (closed)
+			throw new IOException("Transport closed");
+
+		// Scans are tiny and latency bound
+		socket.setTcpNoDelay(true);
+		socket.setKeepAlive(true);
+		socket.connect(new InetSocketAddress(host, port), connectTimeout);
+		in = socket.getInputStream();
+	}
+
+	@Override
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		InputStream stream = in;
+		if (stream == null)
+			throw new IOException("Transport not open");
+		return stream.read(buffer, offset, length);
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing left to release
+		}
+	}
+
+	@Override
+	public boolean isHealthy() {
+		return in != null && !closed && socket.isConnected() && !socket.isInputShutdown();
+	}
+
+	@Override
+	public String getAddress() {
+		return host + ":" + port;
+	}
+}
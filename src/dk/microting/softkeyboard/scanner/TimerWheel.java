@@ -0,0 +1,301 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A low resolution hashed timing wheel: one thread fires the frame
+ * timeouts, reconnect backoffs and idle checks of every scanner link, so
+ * the thread count does not grow with the number of scanners.
+ *
+ * Time advances in ticks of {@code tickMillis}. A task due in d ms goes
+ * into the bucket of the tick it expires in, and each tick only looks at
+ * its own bucket. Tasks fire up to a tick late, plus scheduling jitter,
+ * and never early. The thread sleeps until the earliest deadline rather
+ * than waking for every tick, so long lived tasks such as the watchdog
+ * cost one wake-up per firing.
+ *
+ * Tasks are intrusive list nodes, so scheduling, rescheduling and
+ * cancelling allocate nothing and one task object can be reused for the
+ * lifetime of its owner. A task is in the wheel at most once; scheduling
+ * it again moves it. Tasks run on the wheel thread and must be short.
+ *
+ * Cancelling is best effort: a task taken off the wheel for firing at the
+ * same moment may still run once, so tasks check their own state.
+ */
+public final class TimerWheel {
+
+	public static final long DEFAULT_TICK = 10;
+	public static final int DEFAULT_BUCKETS = 512;
+
+	/** A reusable timer task. */
+	public static abstract class Task implements Runnable {
+		Task prev;
+		Task next;
+		long deadline;
+		int bucket = -1;
+
+		/** @return true while the task waits in a wheel */
+		public final boolean isScheduled() {
+			return bucket >= 0;
+		}
+	}
+
+	private static TimerWheel shared;
+
+	private final String name;
+	private final long tickNanos;
+	private final Task[] buckets;
+	private final int mask;
+	// Reused every tick, only touched by the wheel thread
+	private final ArrayList<Task> expired = new ArrayList<Task>();
+
+	// Guarded by this
+	private long tick = 0;
+	private long startNanos;
+	private int pending = 0;
+	// No task is due before this tick; may be too early after a cancel
+	private long earliest = Long.MAX_VALUE;
+	private Thread thread;
+	private boolean stopped = false;
+
+	/**
+	 * @param buckets rounded up to a power of two; a revolution should
+	 *        cover the common delays, longer ones are revisited each round
+	 */
+	public TimerWheel(String name, long tickMillis, int buckets) {
+		if (tickMillis <= 0)
+			throw new IllegalArgumentException("tickMillis must be positive: " + tickMillis);
+		if (buckets <= 0 || buckets > 1 << 16)
+			throw new IllegalArgumentException("buckets out of range: " + buckets);
+
+		int size = Integer.highestOneBit(buckets);
+		if (size < buckets)
+			size <<= 1;
+		this.name = name;
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.buckets = new Task[size];
+		this.mask = size - 1;
+	}
+
+	/** @return the process wide wheel, started on its first task */
+	public static synchronized TimerWheel shared() {
+		if (shared == null)
+			shared = new TimerWheel("TimerWheel", DEFAULT_TICK, DEFAULT_BUCKETS);
+		return shared;
+	}
+
+	/**
+	 * Stops the process wide wheel, for when its users are destroyed. The
+	 * next {@link #shared()} starts a new one.
+	 */
+	public static void stopShared() {
+		TimerWheel wheel;
+		synchronized (TimerWheel.class) {
+			wheel = shared;
+			shared = null;
+		}
+		// Outside the class lock: a task still running may call shared()
+		if (wheel != null)
+			wheel.stop();
+	}
+
+	/**
+	 * Runs {@code task} once after {@code delayMillis}, replacing any time
+	 * it was scheduled for before. On a stopped wheel the task never runs.
+	 */
+	public synchronized void schedule(Task task, long delayMillis) {
+		// A reader still draining after its owner stopped the wheel
+		if (stopped)
+			return;
+		if (thread == null)
+			startThread();
+
+		if (task.bucket >= 0)
+			unlink(task);
+		else if (pending == 0)
+			catchUp();
+
+		// Tick k is processed once (k + 1) ticks have passed since the start
+		long due = System.nanoTime() - startNanos + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0));
+		task.deadline = Math.max((due + tickNanos - 1) / tickNanos - 1, tick);
+		link(task, (int) (task.deadline & mask));
+	}
+
+	/** @return true if the task was waiting and will not fire */
+	public synchronized boolean cancel(Task task) {
+		if (task.bucket < 0)
+			return false;
+		unlink(task);
+		return true;
+	}
+
+	/** @return tasks waiting in the wheel */
+	public synchronized int pending() {
+		return pending;
+	}
+
+	/** Ends the thread, dropping the waiting tasks and any scheduled later. */
+	public void stop() {
+		Thread t;
+		synchronized (this) {
+			stopped = true;
+			for (int i = 0; i < buckets.length; i++) {
+				while (buckets[i] != null)
+					unlink(buckets[i]);
+			}
+			t = thread;
+			notifyAll();
+		}
+		if (t != null && t != Thread.currentThread()) {
+			try {
+				t.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void startThread() {
+		startNanos = System.nanoTime();
+		thread = new Thread(name) {
+			@Override
+			public void run() {
+				loop();
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void loop() {
+		for (;;) {
+			synchronized (this) {
+				if (!waitForTick())
+					return;
+
+				int index = (int) (tick & mask);
+				Task task = buckets[index];
+				while (task != null) {
+					Task next = task.next;
+					if (task.deadline <= tick) {
+						unlink(task);
+						expired.add(task);
+					}
+					task = next;
+				}
+				tick++;
+				if (tick > earliest)
+					earliest = findEarliest();
+			}
+
+			// Outside the lock, so tasks can schedule themselves again
+			for (int i = 0; i < expired.size(); i++) {
+				try {
+					expired.get(i).run();
+				} catch (Throwable t) {
+					// One failing task must not stop the timeouts of every link
+					t.printStackTrace();
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * Sleeps until the tick of the earliest task has passed, woken early
+	 * when a task due sooner arrives. The empty ticks in between are
+	 * skipped; no task can be waiting in them.
+	 *
+	 * @return false if the wheel was stopped
+	 */
+	private boolean waitForTick() {
+		for (;;) {
+			if (stopped)
+				return false;
+
+			try {
+				if (pending == 0) {
+					wait();
+					continue;
+				}
+
+				long next = Math.max(tick, earliest);
+				long remaining = startNanos + (next + 1) * tickNanos - System.nanoTime();
+				if (remaining <= 0) {
+					tick = next;
+					return true;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			} catch (InterruptedException e) {
+				stopped = true;
+				return false;
+			}
+		}
+	}
+
+	/** Walks the whole wheel, once per firing rather than once per tick. */
+	private long findEarliest() {
+		long min = Long.MAX_VALUE;
+		if (pending == 0)
+			return min;
+		for (int i = 0; i < buckets.length; i++) {
+			for (Task task = buckets[i]; task != null; task = task.next) {
+				if (task.deadline < min)
+					min = task.deadline;
+			}
+		}
+		return min;
+	}
+
+	/**
+	 * Skips the ticks that passed while the wheel was empty, so the thread
+	 * does not wake up for every one of them.
+	 */
+	private void catchUp() {
+		long elapsed = (System.nanoTime() - startNanos) / tickNanos;
+		if (elapsed > tick)
+			tick = elapsed;
+	}
+
+	private void link(Task task, int index) {
+		task.bucket = index;
+		task.prev = null;
+		task.next = buckets[index];
+		if (task.next != null)
+			task.next.prev = task;
+		buckets[index] = task;
+		// Wake the thread if it sleeps longer than this task may wait
+		if (pending++ == 0 || task.deadline < earliest) {
+			earliest = Math.min(earliest, task.deadline);
+			notifyAll();
+		}
+	}
+
+	private void unlink(Task task) {
+		if (task.prev != null)
+			task.prev.next = task.next;
+		else
+			buckets[task.bucket] = task.next;
+		if (task.next != null)
+			task.next.prev = task.prev;
+		task.prev = task.next = null;
+		task.bucket = -1;
+		if (--pending == 0)
+			earliest = Long.MAX_VALUE;
+	}
+}
@@ -0,0 +1,189 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A process wide flight recorder for hot paths, instead of Log.d with
+ * string concatenation on every key press and read.
+ *
+ * An event is four longs: a header with its sequence number and event
+ * id, a System.nanoTime() stamp and two arguments. They are written into
+ * a ring allocated once, so tracing never allocates, formats or does IPC;
+ * formatting happens only when the ring is dumped, on demand or when the
+ * process crashes. Below the current level a trace call is a single
+ * volatile read.
+ *
+ * Any thread may trace. The header of an event is published with a
+ * release store after the rest of it, so a dump that sees the header also
+ * sees that event's time and arguments. A dump skips the slots that are
+ * not written yet. It cannot always tell that a slot is being overwritten
+ * while it reads, so such an event may show the next lap's time or
+ * arguments.
+ */
+public final class Tracer {
+
+	public static final int OFF = 0;
+	/** Rare events, e.g. a link coming up. */
+	public static final int INFO = 1;
+	/** Once per key press or scan. */
+	public static final int DEBUG = 2;
+	/** Once per read or smaller step. */
+	public static final int VERBOSE = 3;
+
+	/** Events kept, a power of two. */
+	public static final int CAPACITY = 2048;
+
+	private static final int MAX_EVENTS = 256;
+	private static final int MASK = CAPACITY - 1;
+
+	private static final AtomicLongArray ring = new AtomicLongArray(CAPACITY * 4);
+	private static final AtomicLong cursor = new AtomicLong();
+	private static final String[] names = new String[MAX_EVENTS];
+	private static final AtomicInteger nextEvent = new AtomicInteger(1);
+
+	private static volatile int level = DEBUG;
+	private static boolean crashDumpInstalled = false;
+
+	private Tracer() {
+	}
+
+	/**
+	 * Registers an event name, typically into a static final field.
+	 *
+	 * @return the id to trace it with
+	 */
+	public static int event(String name) {
+		int id = nextEvent.getAndIncrement();
+		if (id >= MAX_EVENTS)
+			throw new IllegalStateException("More than " + MAX_EVENTS + " trace events");
+		names[id] = name;
+		return id;
+	}
+
+	public static void setLevel(int newLevel) {
+		level = newLevel;
+	}
+
+	public static int getLevel() {
+		return level;
+	}
+
+	public static boolean isEnabled(int eventLevel) {
+		return eventLevel <= level;
+	}
+
+	public static void trace(int eventLevel, int event) {
+		if (eventLevel <= level)
+			record(event, 0, 0);
+	}
+
+	public static void trace(int eventLevel, int event, long a, long b) {
+		if (eventLevel <= level)
+			record(event, a, b);
+	}
+
+	private static void record(int event, long a, long b) {
+		long sequence = cursor.getAndIncrement();
+		int slot = (int) (sequence & MASK) << 2;
+		// Ordered stores, the header last, so a dump can tell a finished
+		// slot; lazySet costs no full barrier
+		ring.lazySet(slot + 1, System.nanoTime());
+		ring.lazySet(slot + 2, a);
+		ring.lazySet(slot + 3, b);
+		ring.lazySet(slot, sequence << 8 | event);
+	}
+
+	/** @return events traced since the process started */
+	public static long count() {
+		return cursor.get();
+	}
+
+	/**
+	 * Writes the events in the ring, oldest first, one per line: ms before
+	 * the dump, event name and the two arguments.
+	 */
+	public static void dump(PrintWriter out) {
+		long now = System.nanoTime();
+		long end = cursor.get();
+		long start = Math.max(0, end - CAPACITY);
+
+		StringBuilder line = new StringBuilder(64);
+		for (long sequence = start; sequence < end; sequence++) {
+			int slot = (int) (sequence & MASK) << 2;
+			long header = ring.get(slot);
+			long time = ring.get(slot + 1);
+			long a = ring.get(slot + 2);
+			long b = ring.get(slot + 3);
+			// Not written yet, or its header overwritten while we read it
+			if (header >>> 8 != sequence || ring.get(slot) != header)
+				continue;
+
+			long micros = (now - time) / 1000;
+			line.setLength(0);
+			line.append('-').append(micros / 1000).append('.');
+			long fraction = micros % 1000;
+			if (fraction < 100)
+				line.append('0');
+			if (fraction < 10)
+				line.append('0');
+			line.append(fraction).append(" ms ");
+			String name = names[(int) (header & 0xFF)];
+			line.append(name != null ? name : "?").append(' ').append(a).append(' ').append(b);
+			out.println(line);
+		}
+		out.flush();
+	}
+
+	/**
+	 * Dumps the ring to {@code file} when a thread dies of an uncaught
+	 * exception, then lets the previous handler, usually the one that
+	 * kills the process, do its work. Only the first call installs a
+	 * handler, so a service created again does not chain another one.
+	 */
+	public static synchronized void installCrashDump(final File file) {
+		if (crashDumpInstalled)
+			return;
+		crashDumpInstalled = true;
+
+		final UncaughtExceptionHandler previous = Thread.getDefaultUncaughtExceptionHandler();
+		Thread.setDefaultUncaughtExceptionHandler(new UncaughtExceptionHandler() {
+			@Override
+			public void uncaughtException(Thread thread, Throwable e) {
+				try {
+					PrintWriter out = new PrintWriter(new FileWriter(file));
+					try {
+						out.println("Uncaught in " + thread.getName() + ": " + e);
+						dump(out);
+					} finally {
+						out.close();
+					}
+				} catch (IOException ignored) {
+					// Nothing more to be done while crashing
+				}
+				if (previous != null)
+					previous.uncaughtException(thread, e);
+			}
+		});
+	}
+}
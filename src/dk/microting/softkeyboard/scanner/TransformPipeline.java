@@ -0,0 +1,439 @@
+/**
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU General Public License for more details.
+*/
+
+/**
+*
+* @author Martin Jensby mj@microting.dk
+* @author <a target="_blank" href="http://www.microting.com/">www.microting.com</a>
+*
+*/
+
+package dk.microting.softkeyboard.scanner;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An ordered chain of edits applied to every barcode before it reaches the
+ * editor, for example stripping the AIM symbology identifier, adding a
+ * prefix, left padding with zeros or picking fields out of a GS1 barcode.
+ *
+ * A pipeline is built once, from a {@link Builder} or from a text spec with
+ * {@link #parse(String)}, and is immutable afterwards, so one instance can
+ * be shared between scanner threads. Patterns are compiled while building.
+ * The stages edit a StringBuilder owned by the caller, so a barcode costs
+ * the resulting String plus whatever a regex stage allocates.
+ */
+public final class TransformPipeline {
+
+	/** Leaves every barcode as it is. */
+	public static final TransformPipeline IDENTITY = new Builder().build();
+
+	/** What the keyboard has always done: drop stray CR and LF characters. */
+	public static final TransformPipeline DEFAULT = new Builder().stripChars("\r\n").build();
+
+	private final Stage[] stages;
+
+	private TransformPipeline(List<Stage> stages) {
+		this.stages = stages.toArray(new Stage[stages.size()]);
+	}
+
+	public boolean isIdentity() {
+		return stages.length == 0;
+	}
+
+	/**
+	 * Runs the barcode through every stage.
+	 *
+	 * @param scratch reused between calls by the caller, cleared here
+	 */
+	public String apply(CharSequence barcode, StringBuilder scratch) {
+		if (stages.length == 0)
+			return barcode.toString();
+
+		scratch.setLength(0);
+		scratch.append(barcode);
+		for (Stage stage : stages)
+			stage.apply(scratch);
+		return scratch.toString();
+	}
+
+	/**
+	 * Builds a pipeline from a spec with one stage per line. A line is the
+	 * stage name, a space and its argument. Arguments understand the
+	 * escapes \r, \n, \t, \\ and \xHH, and \s for a space, except in the
+	 * pattern of replace, where \s keeps its regex meaning.
+	 *
+	 * <pre>
+	 * aim
+	 * strip \r\n
+	 * substring 0 -1
+	 * replace ^0+(\d) $1
+	 * pad 13
+	 * upper
+	 * prefix \x02
+	 * suffix \t
+	 * gs1 {01}\t{10}
+	 * </pre>
+	 *
+	 * @throws IllegalArgumentException if a line cannot be understood
+	 */
+	public static TransformPipeline parse(String spec) {
+		Builder builder = new Builder();
+		if (spec == null)
+			return builder.build();
+
+		for (String line : spec.split("\n")) {
+			line = line.trim();
+			if (line.length() == 0 || line.startsWith("#"))
+				continue;
+
+			int space = line.indexOf(' ');
+			String name = space < 0 ? line : line.substring(0, space);
+			String arg = space < 0 ? "" : line.substring(space + 1);
+
+			try {
+				if (name.equals("aim")) {
+					builder.stripAimIdentifier();
+				} else if (name.equals("strip")) {
+					builder.stripChars(unescape(arg));
+				} else if (name.equals("prefix")) {
+					builder.prefix(unescape(arg));
+				} else if (name.equals("suffix")) {
+					builder.suffix(unescape(arg));
+				} else if (name.equals("substring")) {
+					String[] bounds = arg.trim().split("\\s+");
+					builder.substring(Integer.parseInt(bounds[0]), bounds.length > 1 ? Integer.parseInt(bounds[1]) : 0);
+				} else if (name.equals("replace")) {
+					int split = arg.lastIndexOf(' ');
+					if (split < 0)
+						builder.replace(unescapePattern(arg), "");
+					else
+						builder.replace(unescapePattern(arg.substring(0, split)), unescape(arg.substring(split + 1)));
+				} else if (name.equals("upper")) {
+					builder.upperCase();
+				} else if (name.equals("lower")) {
+					builder.lowerCase();
+				} else if (name.equals("pad")) {
+					builder.zeroPad(Integer.parseInt(arg.trim()));
+				} else if (name.equals("gs1")) {
+					builder.gs1(unescape(arg));
+				} else {
+					throw new IllegalArgumentException("unknown transform: " + name);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad transform: " + line, e);
+			}
+		}
+		return builder.build();
+	}
+
+	static String unescape(String s) {
+		return unescape(s, false);
+	}
+
+	/** Like {@link #unescape(String)}, but leaves \s to the regex. */
+	static String unescapePattern(String s) {
+		return unescape(s, true);
+	}
+
+	private static String unescape(String s, boolean pattern) {
+		StringBuilder out = new StringBuilder(s.length());
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c != '\\' || i + 1 == s.length()) {
+				out.append(c);
+				continue;
+			}
+			char e = s.charAt(++i);
+			switch (e) {
+			case 'r': out.append('\r'); break;
+			case 'n': out.append('\n'); break;
+			case 't': out.append('\t'); break;
+			case 's': out.append(pattern ? "\\s" : " "); break;
+			case 'x':
+				if (i + 2 >= s.length())
+					throw new IllegalArgumentException("bad escape in " + s);
+				out.append((char) Integer.parseInt(s.substring(i + 1, i + 3), 16));
+				i += 2;
+				break;
+			default:
+				// Keep regex escapes like \d intact
+				if (e != '\\')
+					out.append('\\');
+				out.append(e);
+			}
+		}
+		return out.toString();
+	}
+
+	public static final class Builder {
+
+		private final List<Stage> stages = new ArrayList<Stage>();
+
+		/** Removes an AIM symbology identifier such as "]E0" at the start. */
+		public Builder stripAimIdentifier() {
+			stages.add(new StripAim());
+			return this;
+		}
+
+		/** Removes every occurrence of any of the given characters. */
+		public Builder stripChars(String chars) {
+			if (chars.length() > 0)
+				stages.add(new StripChars(chars));
+			return this;
+		}
+
+		public Builder prefix(String prefix) {
+			if (prefix.length() > 0)
+				stages.add(new Insert(prefix, true));
+			return this;
+		}
+
+		public Builder suffix(String suffix) {
+			if (suffix.length() > 0)
+				stages.add(new Insert(suffix, false));
+			return this;
+		}
+
+		/**
+		 * Keeps the characters from {@code begin} up to {@code end}. An end of
+		 * zero or less counts back from the end of the barcode, so (0, -1)
+		 * drops the last character and (3, 0) drops the first three.
+		 */
+		public Builder substring(int begin, int end) {
+			stages.add(new Substring(begin, end));
+			return this;
+		}
+
+		/** Replaces every match of {@code regex}, $n refers to groups. */
+		public Builder replace(String regex, String replacement) {
+			stages.add(new Replace(Pattern.compile(regex), replacement));
+			return this;
+		}
+
+		public Builder upperCase() {
+			stages.add(new Case(true));
+			return this;
+		}
+
+		public Builder lowerCase() {
+			stages.add(new Case(false));
+			return this;
+		}
+
+		/** Left pads with zeros up to {@code width} characters. */
+		public Builder zeroPad(int width) {
+			if (width > 0)
+				stages.add(new ZeroPad(width));
+			return this;
+		}
+
+		/**
+		 * Rewrites a GS1 barcode using {@code format}, where {NN} stands for
+		 * the data of application identifier NN, so "{01}" commits only the
+		 * GTIN. A missing AI gives an empty string. Barcodes that are not GS1
+		 * are left alone.
+		 */
+		public Builder gs1(String format) {
+			stages.add(new Gs1Format(format));
+			return this;
+		}
+
+		public TransformPipeline build() {
+			return new TransformPipeline(stages);
+		}
+	}
+
+	static abstract class Stage {
+		abstract void apply(StringBuilder text);
+	}
+
+	static final class StripAim extends Stage {
+		@Override
+		void apply(StringBuilder text) {
+			if (text.length() >= 3 && text.charAt(0) == ']')
+				text.delete(0, 3);
+		}
+	}
+
+	static final class StripChars extends Stage {
+		private final String chars;
+
+		StripChars(String chars) {
+			this.chars = chars;
+		}
+
+		@Override
+		void apply(StringBuilder text) {
+			int kept = 0;
+			final int length = text.length();
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				if (chars.indexOf(c) < 0)
+					text.setCharAt(kept++, c);
+			}
+			text.setLength(kept);
+		}
+	}
+
+	static final class Insert extends Stage {
+		private final String value;
+		private final boolean atStart;
+
+		Insert(String value, boolean atStart) {
+			this.value = value;
+			this.atStart = atStart;
+		}
+
+		@Override
+		void apply(StringBuilder text) {
+			if (atStart)
+				text.insert(0, value);
+			else
+				text.append(value);
+		}
+	}
+
+	static final class Substring extends Stage {
+		private final int begin;
+		private final int end;
+
+		Substring(int begin, int end) {
+			this.begin = begin;
+			this.end = end;
+		}
+
+		@Override
+		void apply(StringBuilder text) {
+			final int length = text.length();
+			int to = end > 0 ? Math.min(end, length) : Math.max(length + end, 0);
+			int from = Math.min(Math.max(begin, 0), to);
+			text.setLength(to);
+			text.delete(0, from);
+		}
+	}
+
+	static final class Replace extends Stage {
+		private final Pattern pattern;
+		private final String replacement;
+
+		Replace(Pattern pattern, String replacement) {
+			this.pattern = pattern;
+			this.replacement = replacement;
+		}
+
+		@Override
+		void apply(StringBuilder text) {
+			Matcher matcher = pattern.matcher(text);
+			if (!matcher.find())
+				return;
+			String result = matcher.replaceAll(replacement);
+			text.setLength(0);
+			text.append(result);
+		}
+	}
+
+	static final class Case extends Stage {
+		private final boolean upper;
+
+		Case(boolean upper) {
+			this.upper = upper;
+		}
+
+		@Override
+		void apply(StringBuilder text) {
+			final int length = text.length();
+			for (int i = 0; i < length; i++) {
+				char c = text.charAt(i);
+				text.setCharAt(i, upper ? Character.toUpperCase(c) : Character.toLowerCase(c));
+			}
+		}
+	}
+
+	static final class ZeroPad extends Stage {
+		private final int width;
+
+		ZeroPad(int width) {
+			this.width = width;
+		}
+
+		@Override
+		void apply(StringBuilder text) {
+			for (int missing = width - text.length(); missing > 0; missing--)
+				text.insert(0, '0');
+		}
+	}
+
+	static final class Gs1Format extends Stage {
+		private static final ThreadLocal<Gs1Format.Scratch> SCRATCH = new ThreadLocal<Gs1Format.Scratch>() {
+			@Override
+			protected Scratch initialValue() {
+				return new Scratch();
+			}
+		};
+
+		static final class Scratch {
+			final Gs1Message message = new Gs1Message();
+			final StringBuilder out = new StringBuilder();
+		}
+
+		// Literal text, or null where the AI at the same index is inserted
+		private final String[] literals;
+		private final int[] ais;
+
+		Gs1Format(String format) {
+			List<String> literals = new ArrayList<String>();
+			List<Integer> ais = new ArrayList<Integer>();
+
+			int pos = 0;
+			while (pos < format.length()) {
+				int open = format.indexOf('{', pos);
+				int close = open < 0 ? -1 : format.indexOf('}', open);
+				if (open < 0 || close < 0) {
+					literals.add(format.substring(pos));
+					ais.add(-1);
+					break;
+				}
+				if (open > pos) {
+					literals.add(format.substring(pos, open));
+					ais.add(-1);
+				}
+				literals.add(null);
+				ais.add(Integer.parseInt(format.substring(open + 1, close)));
+				pos = close + 1;
+			}
+
+			this.literals = literals.toArray(new String[literals.size()]);
+			this.ais = new int[ais.size()];
+			for (int i = 0; i < this.ais.length; i++)
+				this.ais[i] = ais.get(i);
+		}
+
+		@Override
+		void apply(StringBuilder text) {
+			Scratch scratch = SCRATCH.get();
+			if (!Gs1Parser.parse(text, scratch.message))
+				return;
+
+			StringBuilder out = scratch.out;
+			out.setLength(0);
+			for (int i = 0; i < ais.length; i++) {
+				if (literals[i] != null)
+					out.append(literals[i]);
+				else
+					scratch.message.appendTo(out, ais[i]);
+			}
+			scratch.message.clear();
+
+			text.setLength(0);
+			text.append(out);
+		}
+	}
+}